@@ -0,0 +1,85 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.AggregationManager;
+import server.DayManager;
+import server.PersistenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AggregationManager sobre DAYS dias gravados:
+ *   - windowHit: resposta pela janela deslizante (o caso normal depois do arranque)
+ *   - cacheHit: janela vazia, resumos dos dias na cache
+ *   - cacheMiss: janela vazia e cache limpa, os resumos (.sum) são lidos do disco
+ * Os managers da cache são criados antes de os dias serem gravados, para a janela não os carregar.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregationBenchmark {
+    private static final int DAYS = 7;
+
+    @Param({"100", "10000"})
+    public int products;
+
+    @Param({"100000"})
+    public int eventsPerDay;
+
+    private File dir;
+    private PersistenceManager pm;
+    private AggregationManager windowed;
+    private AggregationManager cached;
+    private AggregationManager uncached;
+    private String product;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir("agg-bench");
+        pm = new PersistenceManager(dir.getPath());
+        cached = new AggregationManager(DAYS, DAYS, new DayManager(DAYS), pm);
+        uncached = new AggregationManager(DAYS, DAYS, new DayManager(DAYS), pm);
+        for (int d = 0; d < DAYS; d++) pm.persistDay(d, BenchData.day(eventsPerDay, products, d));
+        windowed = new AggregationManager(DAYS, DAYS, new DayManager(DAYS), pm);
+        // Um produto de popularidade média
+        product = BenchData.product(products / 10);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pm.close();
+        BenchData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public double windowHit() throws IOException {
+        return windowed.aggregateAvgPrice(product, DAYS);
+    }
+
+    @Benchmark
+    public double cacheHit() throws IOException {
+        return cached.aggregateAvgPrice(product, DAYS);
+    }
+
+    @Benchmark
+    public double cacheMiss() throws IOException {
+        uncached.clearCache();
+        return uncached.aggregateAvgPrice(product, DAYS);
+    }
+}
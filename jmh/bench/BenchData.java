@@ -0,0 +1,55 @@
+package bench;
+
+import server.model.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Dias sintéticos para os benchmarks. A popularidade dos produtos segue uma lei de Zipf (s = 1), como num
+ * catálogo real: poucos produtos têm a maior parte dos eventos e a maioria aparece poucas vezes.
+ */
+final class BenchData {
+    private BenchData() {}
+
+    static String product(int i) {
+        return "Produto_" + i;
+    }
+
+    static List<Event> day(int events, int products, long seed) {
+        double[] cumulative = new double[products];
+        double sum = 0.0;
+        for (int k = 0; k < products; k++) {
+            sum += 1.0 / (k + 1);
+            cumulative[k] = sum;
+        }
+        String[] names = new String[products];
+        for (int k = 0; k < products; k++) names[k] = product(k);
+
+        Random rnd = new Random(seed);
+        long ts = 1_700_000_000_000L + seed * 86_400_000L;
+        List<Event> day = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            int idx = Arrays.binarySearch(cumulative, rnd.nextDouble() * sum);
+            int p = idx >= 0 ? idx : Math.min(-idx - 1, products - 1);
+            ts += rnd.nextInt(50);
+            day.add(new Event(names[p], 1 + rnd.nextInt(20), 1.0 + rnd.nextInt(10_000) / 100.0, ts));
+        }
+        return day;
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,121 @@
+package bench;
+
+import common.IOUtils;
+import common.Message;
+import common.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.model.Event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codificação das frames e dos tipos básicos do protocolo. Os streams são criados uma vez e repostos a cada
+ * operação, pelo que o -prof gc mostra só as alocações do próprio codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    // Tamanho do payload da frame e da string (ADD_EVENT tem dezenas de bytes, um lote ADD_EVENTS dezenas de KB)
+    @Param({"32", "1024", "65536"})
+    public int size;
+
+    private Message message;
+    private String string;
+    private Event event;
+
+    private final ByteArrayOutputStream bout = new ByteArrayOutputStream(128 * 1024);
+    private final DataOutputStream out = new DataOutputStream(bout);
+
+    private ByteArrayInputStream messageBytes;
+    private DataInputStream messageIn;
+    private ByteArrayInputStream stringBytes;
+    private DataInputStream stringIn;
+    private ByteArrayInputStream eventBytes;
+    private DataInputStream eventIn;
+
+    @Setup
+    public void setup() throws IOException {
+        Random rnd = new Random(42);
+        byte[] payload = new byte[size];
+        rnd.nextBytes(payload);
+        message = new Message(1, Protocol.ADD_EVENTS, payload);
+
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) sb.append((char) ('a' + rnd.nextInt(26)));
+        string = sb.toString();
+        event = new Event(BenchData.product(rnd.nextInt(1000)), 7, 12.5, System.currentTimeMillis());
+
+        message.writeTo(out);
+        messageBytes = new ByteArrayInputStream(bout.toByteArray());
+        messageIn = new DataInputStream(messageBytes);
+
+        bout.reset();
+        IOUtils.writeString(out, string);
+        stringBytes = new ByteArrayInputStream(bout.toByteArray());
+        stringIn = new DataInputStream(stringBytes);
+
+        bout.reset();
+        event.writeTo(out);
+        eventBytes = new ByteArrayInputStream(bout.toByteArray());
+        eventIn = new DataInputStream(eventBytes);
+    }
+
+    @Benchmark
+    public int messageWrite() throws IOException {
+        bout.reset();
+        message.writeTo(out);
+        return bout.size();
+    }
+
+    @Benchmark
+    public Message messageRead() throws IOException {
+        messageBytes.reset();
+        return Message.readFrom(messageIn);
+    }
+
+    @Benchmark
+    public int stringWrite() throws IOException {
+        bout.reset();
+        IOUtils.writeString(out, string);
+        return bout.size();
+    }
+
+    @Benchmark
+    public String stringRead() throws IOException {
+        stringBytes.reset();
+        return IOUtils.readString(stringIn);
+    }
+
+    @Benchmark
+    public int eventWrite() throws IOException {
+        bout.reset();
+        event.writeTo(out);
+        return bout.size();
+    }
+
+    @Benchmark
+    public Event eventRead() throws IOException {
+        eventBytes.reset();
+        return Event.readFrom(eventIn);
+    }
+}
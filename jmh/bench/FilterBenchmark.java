@@ -0,0 +1,80 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import server.DayManager;
+import server.FilterManager;
+import server.PersistenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtro de um dia gravado: filterByProducts (a resposta FILTER_EVENTS numa String) e filterEvents
+ * (o caminho do FILTER_EVENTS_STREAM, sem juntar os eventos), para wanted produtos espalhados pela
+ * distribuição de popularidade.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    @Param({"100", "10000"})
+    public int products;
+
+    @Param({"100000"})
+    public int eventsPerDay;
+
+    @Param({"1", "10"})
+    public int wanted;
+
+    private File dir;
+    private PersistenceManager pm;
+    private FilterManager filter;
+    private List<String> wantedList;
+    private String wantedString;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir("filter-bench");
+        pm = new PersistenceManager(dir.getPath());
+        pm.persistDay(0, BenchData.day(eventsPerDay, products, 0));
+        filter = new FilterManager(new DayManager(1), pm);
+
+        wantedList = new ArrayList<>();
+        for (int i = 0; i < wanted; i++) wantedList.add(BenchData.product(i * products / wanted));
+        wantedString = String.join(" ", wantedList);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pm.close();
+        BenchData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public String filterByProducts() throws IOException {
+        return filter.filterByProducts(wanted, wantedString, 0);
+    }
+
+    @Benchmark
+    public void filterEvents(Blackhole bh) throws IOException {
+        filter.filterEvents(wantedList, 0, (product, quantity, price, timestamp) -> bh.consume(timestamp));
+    }
+}
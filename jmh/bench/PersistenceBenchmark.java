@@ -0,0 +1,86 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import server.EventColumns;
+import server.PersistenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gravação e leitura de um dia inteiro. persistDay inclui o fsync, como no fecho de um dia no servidor.
+ * streamDay cria um Event por registo; scanDay (o caminho dos filtros e da agregação) não.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+    // Dias gravados pelo persistDay, à volta, para não crescer o disco usado
+    private static final int WRITE_DAYS = 4;
+
+    @Param({"10000", "100000", "1000000"})
+    public int eventsPerDay;
+
+    @Param({"1000"})
+    public int products;
+
+    private File dir;
+    private PersistenceManager pm;
+    private EventColumns day;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir("persist-bench");
+        pm = new PersistenceManager(dir.getPath());
+        day = EventColumns.of(BenchData.day(eventsPerDay, products, 0));
+        pm.persistDay(0, day);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pm.close();
+        BenchData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public void persistDay() throws IOException {
+        pm.persistDay(1 + next++ % WRITE_DAYS, day);
+    }
+
+    @Benchmark
+    public void streamDay(Blackhole bh) throws IOException {
+        pm.streamDay(0, bh::consume);
+    }
+
+    @Benchmark
+    public void scanDay(Blackhole bh) throws IOException {
+        pm.scanDay(0, new PersistenceManager.RecordVisitor() {
+            @Override
+            public void dictionary(String[] products) {
+                bh.consume(products);
+            }
+
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) {
+                bh.consume(timestamp);
+            }
+        });
+    }
+}
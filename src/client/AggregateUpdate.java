@@ -0,0 +1,67 @@
+package client;
+
+/**
+ * Valores de uma subscrição de agregados (SERVER_PUSH): os últimos days dias fechados antes de day.
+ */
+public final class AggregateUpdate {
+    private final String product;
+    private final int days;
+    private final int day;
+    private final int quantity;
+    private final double volume;
+    private final double avgPrice;
+    private final double maxPrice;
+
+    public AggregateUpdate(String product, int days, int day, int quantity, double volume, double avgPrice,
+                           double maxPrice) {
+        this.product = product;
+        this.days = days;
+        this.day = day;
+        this.quantity = quantity;
+        this.volume = volume;
+        this.avgPrice = avgPrice;
+        this.maxPrice = maxPrice;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    /** Dia aberto no servidor quando os valores foram calculados. */
+    public int getDay() {
+        return day;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public double getVolume() {
+        return volume;
+    }
+
+    public double getAvgPrice() {
+        return avgPrice;
+    }
+
+    public double getMaxPrice() {
+        return maxPrice;
+    }
+
+    @Override
+    public String toString() {
+        return "AggregateUpdate{" +
+                "product='" + product + '\'' +
+                ", days=" + days +
+                ", day=" + day +
+                ", quantity=" + quantity +
+                ", volume=" + volume +
+                ", avgPrice=" + avgPrice +
+                ", maxPrice=" + maxPrice +
+                '}';
+    }
+}
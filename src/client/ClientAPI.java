@@ -1,5 +1,6 @@
 package client;
 
+import common.EventStreamCodec;
 import common.IOUtils;
 import common.Message;
 import common.Protocol;
@@ -9,17 +10,37 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 public class ClientAPI implements AutoCloseable {
     private final ClientConnection conn;
+    private volatile Duration requestTimeout = null;
 
     public ClientAPI(ClientConnection conn) {
         this.conn = conn;
     }
 
+    /**
+     * Timeout aplicado a cada pedido (null = sem timeout). Não se aplica aos WAIT_*, que podem durar o dia todo
+     * (o seu timeout é passado ao servidor, ver waitSimultaneous).
+     */
+    public void setRequestTimeout(Duration timeout) {
+        this.requestTimeout = timeout;
+    }
+
+    private CompletableFuture<Message> sendAsync(byte opCode, byte[] payload) {
+        boolean waitOp = opCode == Protocol.WAIT_SIMULTANEOUS || opCode == Protocol.WAIT_CONSECUTIVE;
+        return conn.sendRequestAsync(opCode, payload, waitOp ? null : requestTimeout);
+    }
+
     private Message sendAndWait(byte opCode, byte[] payload) throws IOException {
-        return conn.sendRequest(opCode, payload);
+        return ClientConnection.await(sendAsync(opCode, payload));
     }
 
     private DataInputStream payloadStream(Message resp) {
@@ -84,6 +105,49 @@ public class ClientAPI implements AutoCloseable {
         return din.readLong();
     }
 
+    /**
+     * Envia todos os eventos do lote numa só frame (ADD_EVENTS). Retorna o instante de ack do servidor.
+     */
+    public long addEvents(EventBatch batch) throws IOException {
+        Message resp = sendAndWait(Protocol.ADD_EVENTS, batch.encode());
+        if (resp == null) throw new IOException("No response from server");
+
+        DataInputStream din = payloadStream(resp);
+        ensureStatusOk(din);
+        int accepted = din.readInt();
+        if (accepted != batch.size()) {
+            throw new IOException("Server accepted " + accepted + " of " + batch.size() + " events");
+        }
+        return din.readLong();
+    }
+
+    /**
+     * Versão assíncrona de addEvents: o future completa com o instante de ack do servidor.
+     */
+    public CompletableFuture<Long> addEventsAsync(EventBatch batch) throws IOException {
+        int expected = batch.size();
+        return sendAsync(Protocol.ADD_EVENTS, batch.encode()).thenApply(resp -> {
+            try {
+                DataInputStream din = payloadStream(resp);
+                ensureStatusOk(din);
+                int accepted = din.readInt();
+                if (accepted != expected) {
+                    throw new IOException("Server accepted " + accepted + " of " + expected + " events");
+                }
+                return din.readLong();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Cria um pipeline de ingestão assíncrona sobre esta ligação (ver IngestPipeline).
+     */
+    public IngestPipeline ingestPipeline(int maxBatchSize, long lingerMillis, int maxInFlight) {
+        return new IngestPipeline(this, maxBatchSize, lingerMillis, maxInFlight);
+    }
+
     public int advanceDay() throws IOException {
         Message resp = sendAndWait(Protocol.ADVANCE_DAY, new byte[0]);
         if (resp == null) throw new IOException("No response from server");
@@ -169,11 +233,58 @@ public class ClientAPI implements AutoCloseable {
         return IOUtils.readString(din);
     }
 
+    /**
+     * Filtro em streaming: cada evento dos produtos pedidos no dia d é entregue a onEvent à medida que as
+     * frames chegam, pelo que a memória usada não depende do tamanho do resultado.
+     * onEvent corre na thread de leitura da ligação e não deve fazer pedidos síncronos nesta ligação.
+     * Retorna o nº de eventos recebidos; um dia sem eventos gravados dá IOException (STATUS_NOT_FOUND).
+     */
+    public int filterEvents(List<String> products, int d, Consumer<EventRecord> onEvent) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        IOUtils.writeStringList(dout, products);
+        dout.writeInt(d);
+        dout.flush();
+
+        EventStreamCodec.Decoder decoder = new EventStreamCodec.Decoder();
+        EventStreamCodec.RecordHandler toRecord =
+                (product, quantity, price, timestamp) -> onEvent.accept(new EventRecord(product, quantity, price, timestamp));
+        Message resp = ClientConnection.await(conn.sendStreamRequestAsync(Protocol.FILTER_EVENTS_STREAM,
+                bout.toByteArray(), chunk -> {
+                    try {
+                        decoder.decode(chunk.getPayload(), toRecord);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Malformed stream chunk", e);
+                    }
+                }));
+        if (resp == null) throw new IOException("No response from server");
+
+        DataInputStream din = payloadStream(resp);
+        ensureStatusOk(din);
+        return din.readInt();
+    }
+
+    /** Filtro em streaming com o resultado todo numa lista (para resultados pequenos). */
+    public List<EventRecord> filterEvents(List<String> products, int d) throws IOException {
+        List<EventRecord> events = new ArrayList<>();
+        filterEvents(products, d, events::add);
+        return events;
+    }
+
     public boolean waitSimultaneous(String p1, String p2) throws IOException {
+        return waitSimultaneous(p1, p2, null);
+    }
+
+    /**
+     * Como waitSimultaneous(p1, p2), mas o servidor desiste ao fim de timeout (null = sem timeout) e
+     * responde STATUS_TIMEOUT, que dá IOException.
+     */
+    public boolean waitSimultaneous(String p1, String p2, Duration timeout) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream dout = new DataOutputStream(bout);
         IOUtils.writeString(dout, p1);
         IOUtils.writeString(dout, p2);
+        if (timeout != null) dout.writeLong(Math.max(1, timeout.toMillis()));
         dout.flush();
 
         Message resp = sendAndWait(Protocol.WAIT_SIMULTANEOUS, bout.toByteArray());
@@ -185,9 +296,15 @@ public class ClientAPI implements AutoCloseable {
     }
 
     public String waitConsecutive(int n) throws IOException {
+        return waitConsecutive(n, null);
+    }
+
+    /** Como waitConsecutive(n), com timeout no servidor (ver waitSimultaneous). */
+    public String waitConsecutive(int n, Duration timeout) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream dout = new DataOutputStream(bout);
         dout.writeInt(n);
+        if (timeout != null) dout.writeLong(Math.max(1, timeout.toMillis()));
         dout.flush();
 
         Message resp = sendAndWait(Protocol.WAIT_CONSECUTIVE, bout.toByteArray());
@@ -199,6 +316,53 @@ public class ClientAPI implements AutoCloseable {
         return (occurred == 1) ? IOUtils.readString(din) : null;
     }
 
+    /**
+     * Subscreve os agregados do produto nos últimos d dias: onUpdate recebe os valores logo a seguir e sempre
+     * que mudam (quando um dia fecha), no máximo um por minInterval (null = a cada mudança). Se o cliente
+     * não acompanhar, recebe só o valor mais recente. onUpdate corre na thread de leitura da ligação e não deve
+     * fazer pedidos síncronos nesta ligação. Retorna o id da subscrição, para unsubscribeAggregates.
+     */
+    public int subscribeAggregates(String product, int d, Duration minInterval,
+                                   Consumer<AggregateUpdate> onUpdate) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        IOUtils.writeString(dout, product);
+        dout.writeInt(d);
+        dout.writeLong(minInterval == null ? 0 : Math.max(0, minInterval.toMillis()));
+        dout.flush();
+
+        Message resp = ClientConnection.await(conn.sendSubscribeAsync(Protocol.SUBSCRIBE_AGG, bout.toByteArray(),
+                push -> {
+                    try {
+                        DataInputStream din = payloadStream(push);
+                        onUpdate.accept(new AggregateUpdate(product, d, din.readInt(), din.readInt(),
+                                din.readDouble(), din.readDouble(), din.readDouble()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Malformed aggregate push", e);
+                    }
+                }));
+        if (resp == null) throw new IOException("No response from server");
+
+        DataInputStream din = payloadStream(resp);
+        ensureStatusOk(din);
+        return din.readInt();
+    }
+
+    public void unsubscribeAggregates(int subscriptionId) throws IOException {
+        // Os pushes já a caminho são ignorados a partir daqui
+        conn.removePushListener(subscriptionId);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.writeInt(subscriptionId);
+        dout.flush();
+
+        Message resp = sendAndWait(Protocol.UNSUBSCRIBE_AGG, bout.toByteArray());
+        if (resp == null) throw new IOException("No response from server");
+
+        ensureStatusOk(payloadStream(resp));
+    }
+
     @Override
     public void close() throws Exception {
         conn.close();
@@ -1,25 +1,36 @@
 package client;
 
 import common.Message;
+import common.Protocol;
+
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
+import java.time.Duration;
 import java.util.Map;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ClientConnection implements Closeable {
     private final Socket socket;
     private final DataOutputStream out;
     private final DataInputStream in;
 
-    private final ReentrantLock lock = new ReentrantLock();
     private final ReentrantLock writeLock = new ReentrantLock();
-    private final Condition responseArrived = lock.newCondition();
 
-    private final Map<Integer, Message> responses = new HashMap<>();
-    private int requestCounter = 1;
-    private boolean running = true;
+    // Um future por pedido pendente; cada resposta completa apenas o seu (sem acordar outras threads)
+    private final Map<Integer, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    // Pedidos em streaming: recebem as frames STREAM_CHUNK antes da resposta final
+    private final Map<Integer, Consumer<Message>> streams = new ConcurrentHashMap<>();
+    // Subscrições: recebem as frames SERVER_PUSH com o seu id até serem removidas
+    private final Map<Integer, Consumer<Message>> pushes = new ConcurrentHashMap<>();
+    private final AtomicInteger requestCounter = new AtomicInteger(1);
+    private volatile boolean running = true;
 
     public ClientConnection(String host, int port) throws IOException {
         this.socket = new Socket(host, port);
@@ -37,13 +48,18 @@ public class ClientConnection implements Closeable {
                 Message msg = Message.readFrom(in);
                 if (msg == null) break;
 
-                lock.lock();
-                try {
-                    responses.put(msg.getRequestId(), msg);
-                    responseArrived.signalAll();
-                } finally {
-                    lock.unlock();
+                int id = msg.getRequestId();
+                if (msg.getOpCode() == Protocol.STREAM_CHUNK) {
+                    deliverChunk(id, msg);
+                    continue;
+                }
+                if (msg.getOpCode() == Protocol.SERVER_PUSH) {
+                    deliverPush(id, msg);
+                    continue;
                 }
+                streams.remove(id);
+                CompletableFuture<Message> f = pending.remove(id);
+                if (f != null) f.complete(msg);
             }
         } catch (IOException ignored) {
         } finally {
@@ -51,51 +67,145 @@ public class ClientConnection implements Closeable {
         }
     }
 
-    public Message sendRequest(byte opCode, byte[] payload) throws IOException {
-        int reqId;
-        lock.lock();
+    // Um callback que falha termina só o seu pedido; as restantes frames desse pedido são ignoradas
+    private void deliverChunk(int id, Message chunk) {
+        Consumer<Message> onChunk = streams.get(id);
+        if (onChunk == null) return;
         try {
-            reqId = requestCounter++;
-        } finally {
-            lock.unlock();
+            onChunk.accept(chunk);
+        } catch (RuntimeException e) {
+            streams.remove(id);
+            CompletableFuture<Message> f = pending.remove(id);
+            if (f != null) f.completeExceptionally(e);
         }
+    }
 
-        Message req = new Message(reqId, opCode, payload);
+    // Um listener que falha não termina a subscrição nem a leitura da ligação
+    private void deliverPush(int id, Message push) {
+        Consumer<Message> onPush = pushes.get(id);
+        if (onPush == null) return;
+        try {
+            onPush.accept(push);
+        } catch (RuntimeException e) {
+            System.err.println("Push listener for subscription " + id + " failed: " + e.getMessage());
+        }
+    }
+
+    public CompletableFuture<Message> sendRequestAsync(byte opCode, byte[] payload) {
+        return sendRequestAsync(opCode, payload, null);
+    }
+
+    /**
+     * Envia o pedido e retorna logo. O future completa com a resposta, com TimeoutException se timeout
+     * (quando não null) expirar antes, ou com IOException se a ligação fechar.
+     */
+    public CompletableFuture<Message> sendRequestAsync(byte opCode, byte[] payload, Duration timeout) {
+        return send(requestCounter.getAndIncrement(), opCode, payload, timeout);
+    }
+
+    /**
+     * Envia um pedido cuja resposta chega em várias frames. Cada STREAM_CHUNK é entregue a onChunk, por ordem,
+     * na thread de leitura; o future completa com a RESPONSE final. Como a leitura da ligação fica parada
+     * enquanto onChunk corre, a memória usada é limitada a uma frame, mas onChunk não deve esperar por
+     * outros pedidos desta ligação.
+     */
+    public CompletableFuture<Message> sendStreamRequestAsync(byte opCode, byte[] payload, Consumer<Message> onChunk) {
+        int reqId = requestCounter.getAndIncrement();
+        streams.put(reqId, onChunk);
+        CompletableFuture<Message> f = send(reqId, opCode, payload, null);
+        f.whenComplete((m, t) -> streams.remove(reqId));
+        return f;
+    }
+
+    /**
+     * Envia um pedido de subscrição cujo id é o requestId. Cada SERVER_PUSH com esse id é entregue a onPush,
+     * na thread de leitura, até removePushListener (ou até a resposta não ser STATUS_OK). O listener fica
+     * registado antes do envio, pelo que nenhum push se perde.
+     */
+    public CompletableFuture<Message> sendSubscribeAsync(byte opCode, byte[] payload, Consumer<Message> onPush) {
+        int reqId = requestCounter.getAndIncrement();
+        pushes.put(reqId, onPush);
+        CompletableFuture<Message> f = send(reqId, opCode, payload, null);
+        f.whenComplete((m, t) -> {
+            if (t != null || m.getPayload().length == 0 || m.getPayload()[0] != Protocol.STATUS_OK) {
+                pushes.remove(reqId);
+            }
+        });
+        return f;
+    }
+
+    public void removePushListener(int subscriptionId) {
+        pushes.remove(subscriptionId);
+    }
 
+    private CompletableFuture<Message> send(int reqId, byte opCode, byte[] payload, Duration timeout) {
+        CompletableFuture<Message> f = new CompletableFuture<>();
+        pending.put(reqId, f);
+        if (!running) {
+            pending.remove(reqId);
+            f.completeExceptionally(new IOException("Connection closed"));
+            return f;
+        }
+
+        Message req = new Message(reqId, opCode, payload);
         writeLock.lock();
         try {
             req.writeTo(out);
             out.flush();
+        } catch (IOException e) {
+            pending.remove(reqId);
+            f.completeExceptionally(e);
+            return f;
         } finally {
             writeLock.unlock();
         }
 
-        lock.lock();
+        if (timeout != null) {
+            f.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((m, t) -> {
+                        if (t != null) pending.remove(reqId);
+                    });
+        }
+        return f;
+    }
+
+    public Message sendRequest(byte opCode, byte[] payload) throws IOException {
+        return await(sendRequestAsync(opCode, payload));
+    }
+
+    /**
+     * Espera pela resposta de um pedido assíncrono, convertendo as falhas em IOException.
+     */
+    public static Message await(CompletableFuture<Message> f) throws IOException {
         try {
-            while (!responses.containsKey(reqId) && running) {
-                responseArrived.await();
-            }
-            return responses.remove(reqId);
+            return f.get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IOException("Interrupted");
-        } finally {
-            lock.unlock();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof TimeoutException) throw new IOException("Request timed out");
+            throw new IOException(cause);
         }
     }
 
     private void closeSilently() {
-        lock.lock();
+        running = false;
         try {
-            running = false;
-            responseArrived.signalAll();
             socket.close();
         } catch (IOException ignored) {}
-        finally { lock.unlock(); }
+        streams.clear();
+        pushes.clear();
+        IOException closed = new IOException("Connection closed");
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<Message> f = pending.remove(id);
+            if (f != null) f.completeExceptionally(closed);
+        }
     }
 
     @Override
     public void close() throws IOException {
         closeSilently();
     }
-}
\ No newline at end of file
+}
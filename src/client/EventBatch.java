@@ -0,0 +1,96 @@
+package client;
+
+import common.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lote de eventos para ADD_EVENTS, guardado em colunas.
+ * Cada nome de produto entra uma única vez no dicionário; os eventos referem-no pelo índice.
+ * Não é thread-safe.
+ */
+public class EventBatch {
+    private final Map<String, Integer> dictIndex = new HashMap<>();
+    private final List<String> dict = new ArrayList<>();
+
+    private int size = 0;
+    private int[] productIdx;
+    private int[] quantities;
+    private double[] prices;
+    private long[] timestamps;
+
+    public EventBatch() {
+        this(64);
+    }
+
+    public EventBatch(int initialCapacity) {
+        int cap = Math.max(1, initialCapacity);
+        productIdx = new int[cap];
+        quantities = new int[cap];
+        prices = new double[cap];
+        timestamps = new long[cap];
+    }
+
+    public void add(String product, int qty, double price, long timestamp) {
+        if (product == null) throw new IllegalArgumentException("product must not be null");
+        if (size == productIdx.length) grow();
+        Integer idx = dictIndex.get(product);
+        if (idx == null) {
+            idx = dict.size();
+            dict.add(product);
+            dictIndex.put(product, idx);
+        }
+        productIdx[size] = idx;
+        quantities[size] = qty;
+        prices[size] = price;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        dictIndex.clear();
+        dict.clear();
+        size = 0;
+    }
+
+    private void grow() {
+        int cap = productIdx.length * 2;
+        productIdx = Arrays.copyOf(productIdx, cap);
+        quantities = Arrays.copyOf(quantities, cap);
+        prices = Arrays.copyOf(prices, cap);
+        timestamps = Arrays.copyOf(timestamps, cap);
+    }
+
+    // Formato: dicionário (string list) + colunas productIdx, quantity, price, timestamp (com prefixo count)
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64 + dict.size() * 16 + size * 24);
+        DataOutputStream dout = new DataOutputStream(bout);
+        IOUtils.writeStringList(dout, dict);
+        // Mesmo formato de IOUtils.writeIntArray/writeDoubleArray/writeLongArray, sem copiar as colunas
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) dout.writeInt(productIdx[i]);
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) dout.writeInt(quantities[i]);
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) dout.writeDouble(prices[i]);
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) dout.writeLong(timestamps[i]);
+        dout.flush();
+        return bout.toByteArray();
+    }
+}
@@ -0,0 +1,63 @@
+package client;
+
+import java.util.Objects;
+
+/**
+ * Evento recebido de um filtro em streaming.
+ */
+public final class EventRecord {
+    private final String product;
+    private final int quantity;
+    private final double price;
+    private final long timestamp;
+
+    public EventRecord(String product, int quantity, double price, long timestamp) {
+        this.product = product;
+        this.quantity = quantity;
+        this.price = price;
+        this.timestamp = timestamp;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "EventRecord{" +
+                "product='" + product + '\'' +
+                ", quantity=" + quantity +
+                ", price=" + price +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        EventRecord that = (EventRecord) o;
+        return quantity == that.quantity
+                && Double.compare(that.price, price) == 0
+                && timestamp == that.timestamp
+                && Objects.equals(product, that.product);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(product, quantity, price, timestamp);
+    }
+}
@@ -0,0 +1,148 @@
+package client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ingestão assíncrona sobre ClientAPI: acumula addEvent num EventBatch e envia-o com ADD_EVENTS
+ * quando atinge maxBatchSize eventos ou quando passam lingerMillis desde o primeiro evento do lote.
+ * No máximo maxInFlight lotes ficam à espera de resposta; acima disso addEvent bloqueia (backpressure).
+ * A ordem entre lotes só é garantida com maxInFlight == 1.
+ */
+public class IngestPipeline implements AutoCloseable {
+    private final ClientAPI api;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final int maxInFlight;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService timer;
+
+    private EventBatch batch;
+    private CompletableFuture<Long> batchAck;
+    private ScheduledFuture<?> lingerTask;
+    private boolean closed = false;
+
+    public IngestPipeline(ClientAPI api, int maxBatchSize, long lingerMillis, int maxInFlight) {
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be > 0");
+        if (lingerMillis < 0) throw new IllegalArgumentException("lingerMillis must be >= 0");
+        if (maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight must be > 0");
+        this.api = api;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ingest-linger");
+            t.setDaemon(true);
+            return t;
+        });
+        newBatch();
+    }
+
+    private void newBatch() {
+        batch = new EventBatch(Math.min(maxBatchSize, 1024));
+        batchAck = new CompletableFuture<>();
+        lingerTask = null;
+    }
+
+    /**
+     * Acrescenta um evento ao lote atual. O future (partilhado por todo o lote) completa com o instante
+     * de ack do servidor, ou excecionalmente se o envio do lote falhar.
+     */
+    public CompletableFuture<Long> addEvent(String product, int qty, double price, long timestamp)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Pipeline closed");
+            batch.add(product, qty, price, timestamp);
+            CompletableFuture<Long> ack = batchAck;
+            if (batch.size() >= maxBatchSize) {
+                sendCurrent();
+            } else if (lingerTask == null) {
+                EventBatch scheduledFor = batch;
+                lingerTask = timer.schedule(() -> flushIfCurrent(scheduledFor), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            return ack;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Envia já o lote atual, se não estiver vazio. */
+    public void flush() throws InterruptedException {
+        lock.lock();
+        try {
+            if (!batch.isEmpty()) sendCurrent();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushIfCurrent(EventBatch expected) {
+        lock.lock();
+        try {
+            if (batch == expected && !batch.isEmpty()) sendCurrent();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com lock adquirido. Bloqueia enquanto houver maxInFlight lotes pendentes.
+    private void sendCurrent() throws InterruptedException {
+        if (lingerTask != null) lingerTask.cancel(false);
+        EventBatch toSend = batch;
+        CompletableFuture<Long> ack = batchAck;
+        inFlight.acquire();
+        newBatch();
+        try {
+            api.addEventsAsync(toSend).whenComplete((ackTime, t) -> {
+                inFlight.release();
+                if (t != null) ack.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+                else ack.complete(ackTime);
+            });
+        } catch (IOException | RuntimeException e) {
+            inFlight.release();
+            ack.completeExceptionally(e);
+        }
+    }
+
+    public int getInFlightBatches() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Envia o que falta e espera pela resposta de todos os lotes. Não fecha o ClientAPI.
+     * Se a thread for interrompida, a interrupção fica marcada e é lançada uma IOException.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                if (!batch.isEmpty()) sendCurrent();
+            } finally {
+                lock.unlock();
+            }
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing pipeline", e);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+}
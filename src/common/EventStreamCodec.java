@@ -0,0 +1,157 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codificação binária dos eventos de um filtro em streaming (payload das frames STREAM_CHUNK).
+ *
+ * Cada chunk:
+ *   varint nNovos, nNovos x string   nomes que entram no dicionário (ids sequenciais, válidos até ao fim do stream)
+ *   varint nRuns
+ *   por run: varint productId, varint n, n x (zigzag varlong deltaTimestamp, zigzag varlong quantity, double price)
+ *
+ * Um run é uma sequência de eventos do mesmo produto. O delta do timestamp é relativo ao evento anterior do
+ * mesmo produto (o primeiro é relativo a 0), também entre chunks. O estado fica no Encoder e no Decoder de cada stream.
+ */
+public final class EventStreamCodec {
+    private EventStreamCodec() {}
+
+    public interface RecordHandler {
+        void record(String product, int quantity, double price, long timestamp);
+    }
+
+    /** Não é thread-safe: um por stream. */
+    public static final class Encoder {
+        private final int chunkBytes;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> newNames = new ArrayList<>();
+        // Bytes que os nomes de newNames ocupam no chunk (writeString)
+        private int newNameBytes = 0;
+        private long[] lastTimestamp = new long[16];
+
+        private final ByteArrayOutputStream runs = new ByteArrayOutputStream();
+        private final DataOutputStream runsOut = new DataOutputStream(runs);
+        private final ByteArrayOutputStream run = new ByteArrayOutputStream();
+        private final DataOutputStream runOut = new DataOutputStream(run);
+        private int runProduct = -1;
+        private int runLength = 0;
+        private int runCount = 0;
+        private int chunkEvents = 0;
+        private int total = 0;
+
+        public Encoder(int chunkBytes) {
+            if (chunkBytes <= 0) throw new IllegalArgumentException("chunkBytes must be > 0");
+            this.chunkBytes = chunkBytes;
+        }
+
+        /**
+         * Acrescenta um evento ao chunk atual. Retorna true quando o chunk (contando os nomes novos do
+         * dicionário) atingiu o tamanho alvo e deve ser enviado com takeChunk().
+         */
+        public boolean add(String product, int quantity, double price, long timestamp) throws IOException {
+            Integer id = ids.get(product);
+            if (id == null) {
+                id = ids.size();
+                ids.put(product, id);
+                newNames.add(product);
+                newNameBytes += 4 + product.getBytes(StandardCharsets.UTF_8).length;
+                if (id >= lastTimestamp.length) lastTimestamp = Arrays.copyOf(lastTimestamp, lastTimestamp.length * 2);
+            }
+            if (id != runProduct) {
+                closeRun();
+                runProduct = id;
+            }
+            IOUtils.writeSignedVarLong(runOut, timestamp - lastTimestamp[id]);
+            IOUtils.writeSignedVarLong(runOut, quantity);
+            runOut.writeDouble(price);
+            lastTimestamp[id] = timestamp;
+            runLength++;
+            chunkEvents++;
+            total++;
+            return newNameBytes + runs.size() + run.size() >= chunkBytes;
+        }
+
+        private void closeRun() throws IOException {
+            if (runLength == 0) return;
+            IOUtils.writeVarInt(runsOut, runProduct);
+            IOUtils.writeVarInt(runsOut, runLength);
+            run.writeTo(runsOut);
+            run.reset();
+            runLength = 0;
+            runCount++;
+        }
+
+        public boolean isEmpty() {
+            return chunkEvents == 0;
+        }
+
+        /** Eventos codificados desde o início do stream. */
+        public int getTotal() {
+            return total;
+        }
+
+        /** Fecha o chunk atual e retorna o seu payload; o próximo add começa um chunk novo. */
+        public byte[] takeChunk() throws IOException {
+            closeRun();
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(runs.size() + 64);
+            DataOutputStream out = new DataOutputStream(chunk);
+            IOUtils.writeVarInt(out, newNames.size());
+            for (String name : newNames) IOUtils.writeString(out, name);
+            IOUtils.writeVarInt(out, runCount);
+            runs.writeTo(out);
+
+            newNames.clear();
+            newNameBytes = 0;
+            runs.reset();
+            runCount = 0;
+            runProduct = -1;
+            chunkEvents = 0;
+            return chunk.toByteArray();
+        }
+    }
+
+    /** Não é thread-safe: um por stream, com os chunks entregues por ordem. */
+    public static final class Decoder {
+        private final List<String> names = new ArrayList<>();
+        private long[] lastTimestamp = new long[16];
+
+        /** Descodifica um chunk e retorna o nº de eventos entregues ao handler. */
+        public int decode(byte[] chunk, RecordHandler handler) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+            int newNames = IOUtils.readVarInt(in);
+            for (int i = 0; i < newNames; i++) names.add(IOUtils.readString(in));
+            if (names.size() > lastTimestamp.length) {
+                lastTimestamp = Arrays.copyOf(lastTimestamp, Math.max(names.size(), lastTimestamp.length * 2));
+            }
+
+            int events = 0;
+            int runs = IOUtils.readVarInt(in);
+            for (int r = 0; r < runs; r++) {
+                int id = IOUtils.readVarInt(in);
+                int n = IOUtils.readVarInt(in);
+                if (id < 0 || id >= names.size() || n < 0) throw new IOException("Malformed event stream");
+                String product = names.get(id);
+                for (int i = 0; i < n; i++) {
+                    long timestamp = lastTimestamp[id] + IOUtils.readSignedVarLong(in);
+                    long quantity = IOUtils.readSignedVarLong(in);
+                    if (quantity != (int) quantity) throw new IOException("Malformed event stream");
+                    double price = in.readDouble();
+                    lastTimestamp[id] = timestamp;
+                    handler.record(product, (int) quantity, price, timestamp);
+                    events++;
+                }
+            }
+            return events;
+        }
+    }
+}
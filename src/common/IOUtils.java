@@ -72,4 +72,82 @@ public final class IOUtils {
         for (int i = 0; i < count; i++) arr[i] = in.readInt();
         return arr;
     }
-}
\ No newline at end of file
+
+    // Escreve um array de doubles com prefixo count:int. Null é representado por -1.
+    public static void writeDoubleArray(DataOutputStream out, double[] arr) throws IOException {
+        if (arr == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(arr.length);
+        for (double v : arr) out.writeDouble(v);
+    }
+
+    // Lê um array de doubles escrito por writeDoubleArray. Retorna null se count == -1.
+    public static double[] readDoubleArray(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        double[] arr = new double[count];
+        for (int i = 0; i < count; i++) arr[i] = in.readDouble();
+        return arr;
+    }
+
+    // Escreve um array de longs com prefixo count:int. Null é representado por -1.
+    public static void writeLongArray(DataOutputStream out, long[] arr) throws IOException {
+        if (arr == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(arr.length);
+        for (long v : arr) out.writeLong(v);
+    }
+
+    // Lê um array de longs escrito por writeLongArray. Retorna null se count == -1.
+    public static long[] readLongArray(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        long[] arr = new long[count];
+        for (int i = 0; i < count; i++) arr[i] = in.readLong();
+        return arr;
+    }
+
+    // Inteiro sem sinal em base 128: 7 bits por byte, o bit mais alto indica que há mais bytes
+    public static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    // Lê um valor escrito por writeVarLong
+    public static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    public static int readVarInt(DataInputStream in) throws IOException {
+        long v = readVarLong(in);
+        if ((v & ~0xFFFFFFFFL) != 0) throw new IOException("Varint out of int range");
+        return (int) v;
+    }
+
+    // Com sinal (zigzag): valores pequenos, positivos ou negativos, ocupam poucos bytes
+    public static void writeSignedVarLong(DataOutputStream out, long v) throws IOException {
+        writeVarLong(out, (v << 1) ^ (v >> 63));
+    }
+
+    public static long readSignedVarLong(DataInputStream in) throws IOException {
+        long u = readVarLong(in);
+        return (u >>> 1) ^ -(u & 1);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -75,6 +76,20 @@ public final class Message {
         out.flush();
     }
 
+    /**
+     * Codifica a mensagem completa (framing incluído) num ByteBuffer pronto a escrever num canal.
+     */
+    public ByteBuffer toByteBuffer() {
+        int bodyLen = payload == null ? 0 : payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4 + 1 + bodyLen);
+        buf.putInt(4 + 1 + bodyLen);
+        buf.putInt(requestId);
+        buf.put(opCode);
+        if (bodyLen > 0) buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
     @Override
     public String toString() {
         return "Message{requestId=" + requestId + ", opCode=0x" + String.format("%02X", opCode)
@@ -0,0 +1,58 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Descodificador incremental do envelope de Message (ver Message) a partir de ByteBuffers.
+ * Mantém o estado entre chamadas, pelo que uma frame pode chegar partida em vários reads.
+ * Não é thread-safe: cada conexão tem o seu.
+ */
+public final class MessageDecoder {
+    private static final int HEADER_LEN = 4 + 4 + 1; // totalLength + requestId + opCode
+
+    private final int maxFrameLength;
+
+    private boolean inFrame = false;
+    private int requestId;
+    private byte opCode;
+    private byte[] payload;
+    private int payloadPos;
+
+    public MessageDecoder(int maxFrameLength) {
+        if (maxFrameLength < 5) throw new IllegalArgumentException("maxFrameLength must be >= 5");
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Consome os bytes disponíveis em buf (em modo leitura) e entrega cada mensagem completa a out.
+     * Bytes de um cabeçalho incompleto ficam no buffer; o caller deve fazer compact() antes do próximo read.
+     */
+    public void decode(ByteBuffer buf, Consumer<Message> out) throws IOException {
+        while (true) {
+            if (!inFrame) {
+                if (buf.remaining() < HEADER_LEN) return;
+                int totalLength = buf.getInt();
+                if (totalLength < 5 || totalLength > maxFrameLength) {
+                    throw new IOException("Invalid message totalLength: " + totalLength);
+                }
+                requestId = buf.getInt();
+                opCode = buf.get();
+                payload = new byte[totalLength - 5];
+                payloadPos = 0;
+                inFrame = true;
+            }
+
+            int n = Math.min(buf.remaining(), payload.length - payloadPos);
+            buf.get(payload, payloadPos, n);
+            payloadPos += n;
+            if (payloadPos < payload.length) return;
+
+            inFrame = false;
+            Message m = new Message(requestId, opCode, payload);
+            payload = null;
+            out.accept(m);
+        }
+    }
+}
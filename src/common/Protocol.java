@@ -10,6 +10,7 @@ public final class Protocol {
 
     public static final byte ADD_EVENT = 0x10;
     public static final byte ADVANCE_DAY = 0x11;
+    public static final byte ADD_EVENTS = 0x12;
 
     public static final byte AGG_QUANTITY = 0x20;
     public static final byte AGG_VOLUME = 0x21;
@@ -17,14 +18,19 @@ public final class Protocol {
     public static final byte AGG_MAX_PRICE = 0x23;
 
     public static final byte FILTER_EVENTS = 0x30;
+    public static final byte FILTER_EVENTS_STREAM = 0x31;
 
     public static final byte WAIT_SIMULTANEOUS = 0x40;
     public static final byte WAIT_CONSECUTIVE = 0x41;
 
     public static final byte HEARTBEAT = 0x50;
 
+    public static final byte SUBSCRIBE_AGG = 0x60;
+    public static final byte UNSUBSCRIBE_AGG = 0x61;
+
     public static final byte RESPONSE = 0x7F;
     public static final byte SERVER_PUSH = 0x70;
+    public static final byte STREAM_CHUNK = 0x71;
 
     public static final byte STATUS_OK = 0x00;
     public static final byte STATUS_AUTH_REQUIRED = 0x01;
@@ -0,0 +1,124 @@
+package server;
+
+import server.model.PerDayAgg;
+
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Janela deslizante com os resumos dos últimos D dias fechados.
+ * A cada dia fechado recalcula, por produto, os acumulados dos últimos k dias (k = 1..D), pelo que
+ * qualquer agregação com d <= D é respondida com um lookup, sem PerDayAgg nem disco.
+ * Os produtos são indexados pelo id do ProductDictionary do servidor (arrays em vez de mapas por nome).
+ * As leituras usam um snapshot imutável publicado por uma referência volatile (sem locks).
+ */
+public class AggregateWindow {
+    private final int D;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Resumo de cada dia indexado por productId (null = sem eventos)
+    private final TreeMap<Integer, PerDayAgg[]> days = new TreeMap<>();
+    private volatile Snapshot snapshot = null;
+
+    /** Acumulados de um produto: posição k = últimos k+1 dias fechados. */
+    static final class ProductWindow {
+        final int[] quantity;
+        final double[] volume;
+        final double[] maxPrice;
+        final int[] countEvents;
+
+        ProductWindow(int size) {
+            quantity = new int[size];
+            volume = new double[size];
+            maxPrice = new double[size];
+            countEvents = new int[size];
+        }
+    }
+
+    static final class Snapshot {
+        final int currentDay;   // dia aberto para o qual o snapshot é válido
+        final int available;    // nº de dias consecutivos (a partir de currentDay - 1) cobertos
+        final ProductWindow[] products;   // por productId; null = sem eventos na janela
+
+        Snapshot(int currentDay, int available, ProductWindow[] products) {
+            this.currentDay = currentDay;
+            this.available = available;
+            this.products = products;
+        }
+
+        ProductWindow product(int productId) {
+            return productId >= 0 && productId < products.length ? products[productId] : null;
+        }
+    }
+
+    public AggregateWindow(int D) {
+        if (D <= 0) throw new IllegalArgumentException("D must be > 0");
+        this.D = D;
+    }
+
+    /**
+     * Junta o resumo de um dia fechado e descarta os dias que saem da janela.
+     */
+    public void addDay(int dayIndex, PerDayAgg[] summary) {
+        lock.lock();
+        try {
+            days.put(dayIndex, summary);
+            int latest = days.lastKey();
+            while (days.firstKey() <= latest - D) {
+                days.pollFirstEntry();
+            }
+            snapshot = rebuild(latest + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com lock adquirido. O(produtos x D).
+    private Snapshot rebuild(int currentDay) {
+        int available = 0;
+        while (available < D && days.containsKey(currentDay - 1 - available)) available++;
+
+        PerDayAgg[][] recent = new PerDayAgg[available][];
+        int ids = 0;
+        for (int k = 0; k < available; k++) {
+            recent[k] = days.get(currentDay - 1 - k);
+            ids = Math.max(ids, recent[k].length);
+        }
+
+        ProductWindow[] products = new ProductWindow[ids];
+        for (int id = 0; id < ids; id++) {
+            ProductWindow w = null;
+            int qty = 0;
+            double vol = 0.0;
+            double max = 0.0;
+            int count = 0;
+            for (int k = 0; k < available; k++) {
+                PerDayAgg p = id < recent[k].length ? recent[k][id] : null;
+                if (p != null && p.getCountEvents() > 0) {
+                    qty += p.getQuantity();
+                    vol += p.getVolume();
+                    if (count == 0 || p.getMaxPrice() > max) max = p.getMaxPrice();
+                    count += p.getCountEvents();
+                }
+                if (count == 0) continue;
+                if (w == null) w = new ProductWindow(available);
+                w.quantity[k] = qty;
+                w.volume[k] = vol;
+                w.maxPrice[k] = max;
+                w.countEvents[k] = count;
+            }
+            products[id] = w;
+        }
+        return new Snapshot(currentDay, available, products);
+    }
+
+    /**
+     * Snapshot que cobre os últimos d dias antes de currentDay, ou null se a janela não os tiver
+     * (ex.: o dia acabou de avançar e o resumo ainda não chegou). Nesse caso o caller calcula pelo caminho lento.
+     */
+    Snapshot snapshotFor(int currentDay, int d) {
+        Snapshot s = snapshot;
+        if (s == null || s.currentDay != currentDay || d > s.available) return null;
+        return s;
+    }
+}
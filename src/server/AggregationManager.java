@@ -1,43 +1,52 @@
 package server;
 
 import server.model.Event;
+import server.model.PerDayAgg;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
 
+/**
+ * Agregações sobre os últimos dias fechados. Em memória (janela e cache) os resumos de cada dia são arrays
+ * indexados pelo productId do ProductDictionary do servidor; os nomes só são usados nos ficheiros .sum.
+ */
 public class AggregationManager {
     private final DayManager dayManager;
+    private final ProductDictionary dictionary;
     private final PersistenceManager persistenceManager;
 
     private final int D;
     private final int S;
 
-    private static final class PerDayAgg {
-        int quantity = 0;
-        double volume = 0.0;
-        double maxPrice = 0.0;
-        int countEvents = 0;
+    // Resultado para produtos sem eventos num dia; nunca é alterado
+    private static final PerDayAgg EMPTY = new PerDayAgg();
+    private static final PerDayAgg[] NO_AGGS = new PerDayAgg[0];
 
-        void incorporate(Event e) {
-            int q = e.getQuantity();
-            double p = e.getPrice();
-            quantity += q;
-            volume += p * q;
-            if (countEvents == 0 || p > maxPrice) maxPrice = p;
-            countEvents++;
+    /**
+     * Entrada da cache: o future é partilhado por todos os pedidos desse dia, pelo que só um faz a leitura
+     * e os outros esperam apenas por esse dia. lastAccess aproxima a ordem LRU para o despejo.
+     */
+    private static final class CacheEntry {
+        final CompletableFuture<PerDayAgg[]> aggs;
+        volatile long lastAccess = System.nanoTime();
+
+        CacheEntry(CompletableFuture<PerDayAgg[]> aggs) {
+            this.aggs = aggs;
         }
     }
 
-    private final ReentrantLock cacheLock = new ReentrantLock();
-    private final Condition loadFinished = cacheLock.newCondition();
+    private final ConcurrentHashMap<Integer, CacheEntry> dayCache = new ConcurrentHashMap<>();
 
-    private final LinkedHashMap<Integer, Map<String, PerDayAgg>> dayCache = new LinkedHashMap<>(16, 0.75f, true);
-    private final java.util.HashSet<Integer> loadingDays = new java.util.HashSet<>();
+    private final AggregateWindow window;
+    // Avisados depois de cada dia fechado entrar na janela (os agregados mudam só aí)
+    private final List<IntConsumer> windowListeners = new CopyOnWriteArrayList<>();
 
     public AggregationManager(DayManager dayManager, PersistenceManager persistenceManager) {
         this(7, 3, dayManager, persistenceManager);
@@ -49,70 +58,161 @@ public class AggregationManager {
         this.D = D;
         this.S = S;
         this.dayManager = dayManager;
+        this.dictionary = dayManager.getDictionary();
         this.persistenceManager = persistenceManager;
+        this.window = new AggregateWindow(D);
+
+        dayManager.addEventListener(new DayManager.EventListener() {
+            @Override
+            public void onEvent(Event e) {}
+
+            @Override
+            public void onDayClosed(int dayIndex, EventColumns events) {
+                // As colunas do dia usam o dicionário do DayManager: o resumo já vem indexado por productId
+                PerDayAgg[] summary = events.summarizeById();
+                window.addDay(dayIndex, summary);
+                cacheCompleteDay(dayIndex, summary);
+                for (IntConsumer l : windowListeners) l.accept(dayIndex);
+            }
+        });
+        preloadWindow();
     }
 
-    private PerDayAgg getPerDayAggForProduct(int dayIndex, String product) throws IOException {
-        cacheLock.lock();
-        try {
-            while (true) {
-                Map<String, PerDayAgg> map = dayCache.get(dayIndex);
-                if (map != null) {
-                    PerDayAgg p = map.get(product);
-                    if (p != null) return p;
-                }
+    /**
+     * O listener recebe o índice de cada dia fechado depois de este entrar na janela, na thread do anel
+     * deste manager: não deve bloquear.
+     */
+    public void addWindowListener(IntConsumer listener) {
+        windowListeners.add(listener);
+    }
 
-                if (!loadingDays.contains(dayIndex)) {
-                    loadingDays.add(dayIndex);
-                    break;
-                } else {
-                    try {
-                        loadFinished.await();
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        return new PerDayAgg();
-                    }
-                }
+    // Carrega na janela os últimos D dias já gravados
+    private void preloadWindow() {
+        int current = dayManager.getDayIndex();
+        for (int day = Math.max(0, current - D); day < current; day++) {
+            try {
+                if (persistenceManager.dayExists(day)) window.addDay(day, byId(loadDaySummary(day)));
+            } catch (IOException e) {
+                System.err.println("Could not load summary for day " + day + ": " + e.getMessage());
             }
-        } finally {
-            cacheLock.unlock();
         }
+    }
 
-        PerDayAgg agg = new PerDayAgg();
-        try {
-            if (persistenceManager.dayExists(dayIndex)) {
-                persistenceManager.streamDay(dayIndex, e -> {
-                    if (product.equals(e.getProductName())) {
-                        agg.incorporate(e);
-                    }
-                });
-            }
-        } finally {
-            cacheLock.lock();
-            try {
-                loadingDays.remove(dayIndex);
-                if (S > 0) {
-                    Map<String, PerDayAgg> map = dayCache.get(dayIndex);
-                    if (map == null) {
-                        while (dayCache.size() >= S) {
-                            Iterator<Integer> it = dayCache.keySet().iterator();
-                            if (it.hasNext()) {
-                                it.next();
-                                it.remove();
-                            } else break;
-                        }
-                        map = new HashMap<>();
-                        dayCache.put(dayIndex, map);
-                    }
-                    map.put(product, agg);
+    // Resumo por nome -> array por productId (os nomes que ainda não estão no dicionário são acrescentados)
+    private PerDayAgg[] byId(Map<String, PerDayAgg> summary) {
+        int[] ids = new int[summary.size()];
+        int max = -1;
+        int i = 0;
+        for (String name : summary.keySet()) {
+            ids[i] = dictionary.intern(name);
+            max = Math.max(max, ids[i++]);
+        }
+        PerDayAgg[] aggs = new PerDayAgg[max + 1];
+        i = 0;
+        for (PerDayAgg agg : summary.values()) aggs[ids[i++]] = agg;
+        return aggs;
+    }
+
+    // Resumo de um dia gravado: do ficheiro .sum, ou numa única leitura do dia (todos os produtos) para
+    // dias gravados antes dos resumos, que fica gravado para a próxima vez
+    private Map<String, PerDayAgg> loadDaySummary(int dayIndex) throws IOException {
+        if (persistenceManager.summaryExists(dayIndex)) return persistenceManager.readSummary(dayIndex);
+        Map<String, PerDayAgg> summary = new HashMap<>();
+        persistenceManager.scanDay(dayIndex, new PersistenceManager.RecordVisitor() {
+            private PerDayAgg[] aggs;
+
+            @Override
+            public void dictionary(String[] products) {
+                aggs = new PerDayAgg[products.length];
+                for (int i = 0; i < products.length; i++) {
+                    aggs[i] = new PerDayAgg();
+                    summary.put(products[i], aggs[i]);
                 }
-                loadFinished.signalAll();
-            } finally {
-                cacheLock.unlock();
             }
+
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) {
+                aggs[productId].incorporate(quantity, price);
+            }
+        });
+        try {
+            persistenceManager.persistSummary(dayIndex, summary);
+        } catch (IOException e) {
+            System.err.println("Could not write summary for day " + dayIndex + ": " + e.getMessage());
         }
+        return summary;
+    }
 
-        return agg;
+    private void cacheCompleteDay(int dayIndex, PerDayAgg[] summary) {
+        if (S == 0) return;
+        dayCache.put(dayIndex, new CacheEntry(CompletableFuture.completedFuture(summary)));
+        evictIfFull();
+    }
+
+    // Despeja os dias já carregados com acesso mais antigo até a cache ter no máximo S dias
+    private void evictIfFull() {
+        while (dayCache.size() > S) {
+            Map.Entry<Integer, CacheEntry> oldest = null;
+            for (Map.Entry<Integer, CacheEntry> e : dayCache.entrySet()) {
+                if (!e.getValue().aggs.isDone()) continue;
+                if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess) oldest = e;
+            }
+            if (oldest == null) return;
+            dayCache.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private PerDayAgg getPerDayAggForProduct(int dayIndex, String product) throws IOException {
+        PerDayAgg[] aggs = getDayAggs(dayIndex);
+        // Depois de carregar o dia: os produtos dele já estão no dicionário
+        int id = dictionary.idOf(product);
+        PerDayAgg p = id >= 0 && id < aggs.length ? aggs[id] : null;
+        return p != null ? p : EMPTY;
+    }
+
+    /**
+     * Agregados de todos os produtos de um dia. Um acerto na cache não usa locks; uma falha carrega o dia
+     * inteiro numa só passagem e os pedidos concorrentes para o mesmo dia esperam pelo mesmo future.
+     */
+    private PerDayAgg[] getDayAggs(int dayIndex) throws IOException {
+        if (S == 0) {
+            return persistenceManager.dayExists(dayIndex) ? byId(loadDaySummary(dayIndex)) : NO_AGGS;
+        }
+
+        CacheEntry entry = dayCache.get(dayIndex);
+        if (entry == null) {
+            CacheEntry mine = new CacheEntry(new CompletableFuture<>());
+            entry = dayCache.putIfAbsent(dayIndex, mine);
+            if (entry == null) return load(dayIndex, mine);
+        }
+        entry.lastAccess = System.nanoTime();
+
+        try {
+            return entry.aggs.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw e;
+        }
+    }
+
+    private PerDayAgg[] load(int dayIndex, CacheEntry mine) throws IOException {
+        try {
+            // Um dia ainda não gravado não fica em cache como vazio
+            if (!persistenceManager.dayExists(dayIndex)) {
+                dayCache.remove(dayIndex, mine);
+                mine.aggs.complete(NO_AGGS);
+                return NO_AGGS;
+            }
+            PerDayAgg[] summary = byId(loadDaySummary(dayIndex));
+            mine.aggs.complete(summary);
+            evictIfFull();
+            return summary;
+        } catch (IOException | RuntimeException e) {
+            dayCache.remove(dayIndex, mine);
+            mine.aggs.completeExceptionally(e);
+            throw e;
+        }
     }
 
     private int[] targetDays(int d) {
@@ -127,40 +227,71 @@ public class AggregationManager {
         return days;
     }
 
+    // Acumulados do produto na janela para os dias pedidos, ou null se a janela não os cobrir
+    private AggregateWindow.Snapshot windowFor(int[] days) {
+        if (days.length == 0) return null;
+        return window.snapshotFor(days[0] + 1, days.length);
+    }
+
     public int aggregateQuantity(String productName, int d) throws IOException {
+        int[] days = targetDays(d);
+        AggregateWindow.Snapshot s = windowFor(days);
+        if (s != null) {
+            AggregateWindow.ProductWindow w = s.product(dictionary.idOf(productName));
+            return w == null ? 0 : w.quantity[days.length - 1];
+        }
         int total = 0;
-        for (int day : targetDays(d)) {
-            total += getPerDayAggForProduct(day, productName).quantity;
+        for (int day : days) {
+            total += getPerDayAggForProduct(day, productName).getQuantity();
         }
         return total;
     }
 
     public double aggregateVolume(String productName, int d) throws IOException {
+        int[] days = targetDays(d);
+        AggregateWindow.Snapshot s = windowFor(days);
+        if (s != null) {
+            AggregateWindow.ProductWindow w = s.product(dictionary.idOf(productName));
+            return w == null ? 0.0 : w.volume[days.length - 1];
+        }
         double total = 0.0;
-        for (int day : targetDays(d)) {
-            total += getPerDayAggForProduct(day, productName).volume;
+        for (int day : days) {
+            total += getPerDayAggForProduct(day, productName).getVolume();
         }
         return total;
     }
 
     public double aggregateAvgPrice(String productName, int d) throws IOException {
+        int[] days = targetDays(d);
+        AggregateWindow.Snapshot s = windowFor(days);
+        if (s != null) {
+            AggregateWindow.ProductWindow w = s.product(dictionary.idOf(productName));
+            if (w == null || w.quantity[days.length - 1] == 0) return 0.0;
+            return w.volume[days.length - 1] / w.quantity[days.length - 1];
+        }
         long totalQty = 0;
         double totalVolume = 0.0;
-        for (int day : targetDays(d)) {
+        for (int day : days) {
             PerDayAgg p = getPerDayAggForProduct(day, productName);
-            totalQty += p.quantity;
-            totalVolume += p.volume;
+            totalQty += p.getQuantity();
+            totalVolume += p.getVolume();
         }
         return (totalQty == 0) ? 0.0 : totalVolume / totalQty;
     }
 
     public double aggregateMaxPrice(String productName, int d) throws IOException {
+        int[] days = targetDays(d);
+        AggregateWindow.Snapshot s = windowFor(days);
+        if (s != null) {
+            AggregateWindow.ProductWindow w = s.product(dictionary.idOf(productName));
+            return (w == null || w.countEvents[days.length - 1] == 0) ? 0.0 : w.maxPrice[days.length - 1];
+        }
         double max = 0.0;
         boolean any = false;
-        for (int day : targetDays(d)) {
+        for (int day : days) {
             PerDayAgg p = getPerDayAggForProduct(day, productName);
-            if (p.countEvents > 0) {
-                if (!any || p.maxPrice > max) max = p.maxPrice;
+            if (p.getCountEvents() > 0) {
+                if (!any || p.getMaxPrice() > max) max = p.getMaxPrice();
                 any = true;
             }
         }
@@ -168,11 +299,6 @@ public class AggregationManager {
     }
 
     public void clearCache() {
-        cacheLock.lock();
-        try {
-            dayCache.clear();
-        } finally {
-            cacheLock.unlock();
-        }
+        dayCache.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package server;
+
+import common.Message;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Transporte bloqueante: uma thread por socket a ler frames com DataInputStream.
+ */
+public final class BlockingConnection implements Runnable, MessageSink {
+    private final Socket socket;
+    private final ConnectionHandler handler;
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final DataOutputStream dout;
+
+    public BlockingConnection(Socket socket, Function<MessageSink, ConnectionHandler> handlerFactory) throws IOException {
+        this.socket = socket;
+        this.dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.handler = handlerFactory.apply(this);
+    }
+
+    @Override
+    public void run() {
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!socket.isClosed()) {
+                Message req = Message.readFrom(din);
+                if (req == null) break;
+                handler.dispatch(req);
+            }
+        } catch (IOException e) {
+            System.err.println("Connection I/O error: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void send(Message m) throws IOException {
+        outLock.lock();
+        try {
+            m.writeTo(dout);
+            dout.flush();
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+        handler.onClose();
+    }
+}
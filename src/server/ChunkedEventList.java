@@ -0,0 +1,70 @@
+package server;
+
+import server.model.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Eventos do dia aberto em colunas primitivas (ver EventColumns), em blocos de tamanho fixo, só com appends.
+ * Cada evento ocupa 24 bytes (productId, quantity, price, timestamp), sem objetos por evento.
+ * Um slot já escrito nunca muda, pelo que um snapshot (diretorias de blocos + tamanho) fica estável sem copiar
+ * eventos: os appends seguintes escrevem depois do seu tamanho, e crescer só copia as diretorias (referências).
+ * Não é thread-safe: quem a usa faz os appends e tira os snapshots sob o mesmo lock.
+ */
+public class ChunkedEventList {
+    static final int CHUNK_SHIFT = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ProductDictionary dictionary;
+    private int[][] products = new int[16][];
+    private int[][] quantities = new int[16][];
+    private double[][] prices = new double[16][];
+    private long[][] timestamps = new long[16][];
+    private int size = 0;
+
+    public ChunkedEventList(ProductDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public void add(Event e) {
+        add(dictionary.intern(e.getProductName()), e.getQuantity(), e.getPrice(), e.getTimestamp());
+    }
+
+    public void add(int productId, int quantity, double price, long timestamp) {
+        int c = size >>> CHUNK_SHIFT;
+        if (c == products.length) {
+            products = Arrays.copyOf(products, c * 2);
+            quantities = Arrays.copyOf(quantities, c * 2);
+            prices = Arrays.copyOf(prices, c * 2);
+            timestamps = Arrays.copyOf(timestamps, c * 2);
+        }
+        if (products[c] == null) {
+            products[c] = new int[CHUNK_SIZE];
+            quantities[c] = new int[CHUNK_SIZE];
+            prices[c] = new double[CHUNK_SIZE];
+            timestamps[c] = new long[CHUNK_SIZE];
+        }
+        int i = size & CHUNK_MASK;
+        products[c][i] = productId;
+        quantities[c][i] = quantity;
+        prices[c][i] = price;
+        timestamps[c][i] = timestamp;
+        size++;
+    }
+
+    public void addAll(List<Event> events) {
+        for (Event e : events) add(e);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Vista imutável dos eventos adicionados até agora, em O(1). */
+    public EventColumns snapshot() {
+        return new EventColumns(dictionary,
+                new EventColumns.Part[]{new EventColumns.Part(products, quantities, prices, timestamps, size)});
+    }
+}
@@ -1,126 +1,162 @@
 package server;
 
+import common.EventStreamCodec;
 import common.IOUtils;
 import common.Message;
 import common.Protocol;
 import server.model.Event;
 
 import java.io.*;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class ConnectionHandler implements Runnable {
-    private final Socket socket;
+/**
+ * Sessão de um cliente: estado de autenticação e tratamento dos pedidos.
+ * Não conhece o transporte; recebe frames completas via dispatch e responde pelo MessageSink.
+ */
+public class ConnectionHandler {
+    // Tamanho a partir do qual uma frame STREAM_CHUNK é enviada
+    private static final int STREAM_CHUNK_BYTES = 64 * 1024;
+    // Máximo de subscrições (SUBSCRIBE_AGG) ativas por conexão
+    private static final int MAX_SUBSCRIPTIONS = 64;
+
+    private final MessageSink sink;
     private final AuthManager authManager;
     private final DayManager dayManager;
+    private final DayManager.Appender appender;
     private final PersistenceManager persistenceManager;
     private final AggregationManager aggregationManager;
     private final FilterManager filterManager;
     private final NotificationManager notificationManager;
+    private final SubscriptionManager subscriptionManager;
+    private final RequestExecutor requestExecutor;
+    private final RequestExecutor.ConnectionQueue requestQueue;
 
     private final ReentrantLock stateLock = new ReentrantLock();
-    private final ReentrantLock outLock = new ReentrantLock();
 
     private boolean authenticated = false;
     private String username = null;
+    // Subscrições desta conexão, por id (protegido por stateLock)
+    private final Map<Integer, SubscriptionManager.Subscription> subscriptions = new HashMap<>();
+    // A conexão fechou: não aceita subscrições novas (protegido por stateLock)
+    private boolean closed = false;
 
-    public ConnectionHandler(Socket socket,
+    public ConnectionHandler(MessageSink sink,
                              AuthManager authManager,
                              DayManager dayManager,
                              PersistenceManager persistenceManager,
                              AggregationManager aggregationManager,
                              FilterManager filterManager,
-                             NotificationManager notificationManager) {
-        this.socket = socket;
+                             NotificationManager notificationManager,
+                             SubscriptionManager subscriptionManager,
+                             RequestExecutor requestExecutor) {
+        this.sink = sink;
         this.authManager = authManager;
         this.dayManager = dayManager;
+        this.appender = dayManager.newAppender();
         this.persistenceManager = persistenceManager;
         this.aggregationManager = aggregationManager;
         this.filterManager = filterManager;
         this.notificationManager = notificationManager;
+        this.subscriptionManager = subscriptionManager;
+        this.requestExecutor = requestExecutor;
+        this.requestQueue = requestExecutor.newConnectionQueue();
     }
 
-    @Override
-    public void run() {
-        try (DataInputStream din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
-
-            while (!socket.isClosed()) {
-                Message req = Message.readFrom(din);
-                if (req == null) break;
-
-                new Thread(() -> {
-                    try {
-                        handleRequest(req, dout);
-                    } catch (IOException ioe) {
-                        System.err.println("I/O error handling request: " + ioe.getMessage());
-                        try { socket.close(); } catch (IOException ignored) {}
-                    } catch (Throwable t) {
-                        System.err.println("Unexpected error: " + t.getMessage());
-                    }
-                }).start();
+    /**
+     * Entrega um pedido descodificado ao executor. Chamado pela thread de leitura do transporte.
+     */
+    public void dispatch(Message req) {
+        boolean accepted = requestExecutor.submit(requestQueue, () -> {
+            try {
+                handleRequest(req);
+            } catch (IOException ioe) {
+                System.err.println("I/O error handling request: " + ioe.getMessage());
+                sink.close();
+            } catch (Throwable t) {
+                System.err.println("Unexpected error: " + t.getMessage());
+            }
+        });
+        if (!accepted) {
+            try {
+                writeError(req.getRequestId(), Protocol.STATUS_RESOURCE_LIMIT, "Server busy, retry later");
+            } catch (IOException ioe) {
+                sink.close();
             }
-        } catch (IOException e) {
-            System.err.println("Connection I/O error: " + e.getMessage());
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    private void handleRequest(Message req, DataOutputStream dout) throws IOException {
+    private void handleRequest(Message req) throws IOException {
         int reqId = req.getRequestId();
         byte op = req.getOpCode();
         byte[] payload = req.getPayload();
 
         switch (op) {
             case Protocol.REGISTER:
-                handleRegister(reqId, payload, dout);
+                handleRegister(reqId, payload);
                 break;
             case Protocol.LOGIN:
-                handleLogin(reqId, payload, dout);
+                handleLogin(reqId, payload);
                 break;
             case Protocol.ADD_EVENT:
-                handleAddEvent(reqId, payload, dout);
+                handleAddEvent(reqId, payload);
+                break;
+            case Protocol.ADD_EVENTS:
+                handleAddEvents(reqId, payload);
                 break;
             case Protocol.ADVANCE_DAY:
-                handleAdvanceDay(reqId, payload, dout);
+                handleAdvanceDay(reqId, payload);
                 break;
             case Protocol.AGG_QUANTITY:
             case Protocol.AGG_VOLUME:
             case Protocol.AGG_AVG_PRICE:
             case Protocol.AGG_MAX_PRICE:
-                handleAggregation(reqId, op, payload, dout);
+                handleAggregation(reqId, op, payload);
                 break;
             case Protocol.FILTER_EVENTS:
-                handleFilter(reqId, op, payload, dout);
+                handleFilter(reqId, op, payload);
+                break;
+            case Protocol.FILTER_EVENTS_STREAM:
+                handleFilterStream(reqId, payload);
                 break;
             case Protocol.WAIT_SIMULTANEOUS:
-                handleWaitSimultaneous(reqId, payload, dout);
+                handleWaitSimultaneous(reqId, payload);
                 break;
             case Protocol.WAIT_CONSECUTIVE:
-                handleWaitConsecutive(reqId, payload, dout);
+                handleWaitConsecutive(reqId, payload);
+                break;
+            case Protocol.SUBSCRIBE_AGG:
+                handleSubscribe(reqId, payload);
+                break;
+            case Protocol.UNSUBSCRIBE_AGG:
+                handleUnsubscribe(reqId, payload);
                 break;
             default:
-                writeError(dout, reqId, Protocol.STATUS_INVALID_REQUEST, "OpCode not supported");
+                writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "OpCode not supported");
                 break;
         }
     }
 
-    private void handleRegister(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
+    private void handleRegister(int reqId, byte[] payload) throws IOException {
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
         String user = IOUtils.readString(in);
         String pass = IOUtils.readString(in);
 
         boolean created = authManager.register(user, pass);
         if (created) {
-            sendSimpleResponse(dout, reqId, Protocol.STATUS_OK);
+            sendSimpleResponse(reqId, Protocol.STATUS_OK);
         } else {
-            writeError(dout, reqId, Protocol.STATUS_ALREADY_EXISTS, "User already exists");
+            writeError(reqId, Protocol.STATUS_ALREADY_EXISTS, "User already exists");
         }
     }
 
-    private void handleLogin(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
+    private void handleLogin(int reqId, byte[] payload) throws IOException {
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
         String user = IOUtils.readString(in);
         String pass = IOUtils.readString(in);
@@ -134,46 +170,116 @@ public class ConnectionHandler implements Runnable {
             } finally {
                 stateLock.unlock();
             }
-            sendSimpleResponse(dout, reqId, Protocol.STATUS_OK);
+            sendSimpleResponse(reqId, Protocol.STATUS_OK);
         } else {
-            writeError(dout, reqId, Protocol.STATUS_INVALID_CREDENTIALS, "Invalid credentials");
+            writeError(reqId, Protocol.STATUS_INVALID_CREDENTIALS, "Invalid credentials");
         }
     }
 
-    private void handleAddEvent(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    private void handleAddEvent(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
-        Event e = new Event(IOUtils.readString(in), in.readInt(), in.readDouble(), in.readLong());
-        dayManager.addEvent(e);
+        String name = IOUtils.readString(in);
+        if (name == null) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Missing product name");
+            return;
+        }
+        ProductDictionary dict = dayManager.getDictionary();
+        int productId = dict.intern(name);
+        // O evento guarda o nome do dicionário, não a String lida do pedido
+        Event e = new Event(productId, dict.name(productId), in.readInt(), in.readDouble(), in.readLong());
+        try {
+            appender.addEvent(e);
+        } catch (IOException ioe) {
+            writeError(reqId, Protocol.STATUS_INTERNAL_ERROR, "Could not log event: " + ioe.getMessage());
+            return;
+        }
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream body = new DataOutputStream(bout);
         body.writeByte(Protocol.STATUS_OK);
         body.writeLong(System.currentTimeMillis());
 
-        writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void handleAdvanceDay(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    private void handleAddEvents(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
-        List<Event> toPersist = dayManager.closeCurrentDayAndStartNew();
-        int closedDay = dayManager.getDayIndex() - 1;
-        persistenceManager.persistDay(closedDay, toPersist);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        List<String> dict = IOUtils.readStringList(in);
+        int[] productIdx = IOUtils.readIntArray(in);
+        int[] quantities = IOUtils.readIntArray(in);
+        double[] prices = IOUtils.readDoubleArray(in);
+        long[] timestamps = IOUtils.readLongArray(in);
+
+        if (dict == null || productIdx == null || quantities == null || prices == null || timestamps == null
+                || quantities.length != productIdx.length || prices.length != productIdx.length
+                || timestamps.length != productIdx.length) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Malformed event batch");
+            return;
+        }
 
-        if (notificationManager != null) notificationManager.signalDayAdvanced();
+        // Índices do lote -> ids do dicionário do servidor, uma vez por produto do lote
+        ProductDictionary products = dayManager.getDictionary();
+        int[] ids = new int[dict.size()];
+        for (int k = 0; k < ids.length; k++) ids[k] = dict.get(k) == null ? -1 : products.intern(dict.get(k));
+
+        List<Event> events = new ArrayList<>(productIdx.length);
+        for (int i = 0; i < productIdx.length; i++) {
+            int idx = productIdx[i];
+            if (idx < 0 || idx >= ids.length || ids[idx] < 0) {
+                writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Invalid product index in batch");
+                return;
+            }
+            events.add(new Event(ids[idx], products.name(ids[idx]), quantities[i], prices[i], timestamps[i]));
+        }
+        try {
+            appender.addEvents(events);
+        } catch (IOException ioe) {
+            writeError(reqId, Protocol.STATUS_INTERNAL_ERROR, "Could not log events: " + ioe.getMessage());
+            return;
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bout);
+        body.writeByte(Protocol.STATUS_OK);
+        body.writeInt(events.size());
+        body.writeLong(System.currentTimeMillis());
+
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
+    }
+
+    private void handleAdvanceDay(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
+
+        int closedDay;
+        try {
+            // A gravação é feita pela thread de escrita; até lá o dia é servido da memória e o WAL fica em
+            // disco. O dia entra no PersistenceManager ainda durante o fecho, para nunca deixar de existir
+            closedDay = dayManager.closeCurrentDayAndStartNew((day, events) ->
+                    persistenceManager.persistDayAsync(day, events).whenComplete((v, t) -> {
+                        if (t != null) System.err.println("Day " + day + " could not be persisted: " + t.getMessage());
+                        else dayManager.discardLog(day);
+                    }));
+        } catch (IOException ioe) {
+            writeError(reqId, Protocol.STATUS_INTERNAL_ERROR, "Could not close day: " + ioe.getMessage());
+            return;
+        }
+
+        // As esperas do dia fechado terminam quando o NotificationManager recebe o fecho pelo anel
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream body = new DataOutputStream(bout);
         body.writeByte(Protocol.STATUS_OK);
         body.writeInt(closedDay);
 
-        writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void handleAggregation(int reqId, byte op, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    private void handleAggregation(int reqId, byte op, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
         String product = IOUtils.readString(in);
@@ -188,11 +294,11 @@ public class ConnectionHandler implements Runnable {
         else if (op == Protocol.AGG_AVG_PRICE) body.writeDouble(aggregationManager.aggregateAvgPrice(product, days));
         else if (op == Protocol.AGG_MAX_PRICE) body.writeDouble(aggregationManager.aggregateMaxPrice(product, days));
 
-        writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void handleFilter(int reqId, byte op, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    private void handleFilter(int reqId, byte op, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
         int nProducts = in.readInt();
@@ -205,78 +311,256 @@ public class ConnectionHandler implements Runnable {
 
         IOUtils.writeString(body, filterManager.filterByProducts(nProducts, products, day));
 
-        writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void handleWaitSimultaneous(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    /**
+     * Filtro em streaming: os eventos seguem em frames STREAM_CHUNK de tamanho limitado com o mesmo requestId,
+     * e a resposta final (RESPONSE com STATUS_OK e o total de eventos) marca o fim.
+     */
+    private void handleFilterStream(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
-        try {
-            boolean result = notificationManager.waitSimultaneous(IOUtils.readString(in), IOUtils.readString(in));
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            DataOutputStream body = new DataOutputStream(bout);
-            body.writeByte(Protocol.STATUS_OK);
-            body.writeByte(result ? (byte)1 : (byte)0);
-            writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        List<String> products = IOUtils.readStringList(in);
+        int day = in.readInt();
+        if (products == null) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Missing product list");
+            return;
         }
+
+        ChunkWriter chunks = new ChunkWriter(reqId);
+        if (!filterManager.filterEvents(products, day, chunks::add)) {
+            writeError(reqId, Protocol.STATUS_NOT_FOUND, "No events for day " + day);
+            return;
+        }
+        chunks.flush();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bout);
+        body.writeByte(Protocol.STATUS_OK);
+        body.writeInt(chunks.total());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void handleWaitConsecutive(int reqId, byte[] payload, DataOutputStream dout) throws IOException {
-        if (!checkAuth(dout, reqId)) return;
+    /** Codifica os eventos com EventStreamCodec e envia uma frame STREAM_CHUNK sempre que o chunk enche. */
+    private final class ChunkWriter {
+        private final int reqId;
+        private final EventStreamCodec.Encoder encoder = new EventStreamCodec.Encoder(STREAM_CHUNK_BYTES);
+
+        ChunkWriter(int reqId) {
+            this.reqId = reqId;
+        }
+
+        void add(String product, int quantity, double price, long timestamp) throws IOException {
+            if (encoder.add(product, quantity, price, timestamp)) flush();
+        }
+
+        void flush() throws IOException {
+            if (encoder.isEmpty()) return;
+            writeMessage(reqId, Protocol.STREAM_CHUNK, encoder.takeChunk());
+        }
+
+        int total() {
+            return encoder.getTotal();
+        }
+    }
+
+    /**
+     * WAIT_SIMULTANEOUS: dois nomes de produto e, opcionalmente, um timeout em ms (long; 0 = sem timeout).
+     * O worker não fica à espera: a resposta é escrita quando a espera completa, o dia fecha ou o timeout
+     * expira (STATUS_TIMEOUT).
+     */
+    private void handleWaitSimultaneous(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
 
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
-        try {
-            String res = notificationManager.waitConsecutive(in.readInt());
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            DataOutputStream body = new DataOutputStream(bout);
-            body.writeByte(Protocol.STATUS_OK);
+        String product1 = IOUtils.readString(in);
+        String product2 = IOUtils.readString(in);
+        if (product1 == null || product2 == null) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Missing product name");
+            return;
+        }
+        long timeoutMillis = readWaitTimeout(in);
+        if (timeoutMillis < 0) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Invalid timeout");
+            return;
+        }
+        replyWhenComplete(reqId, notificationManager.waitSimultaneous(product1, product2), timeoutMillis,
+                (body, result) -> body.writeByte(result ? (byte)1 : (byte)0));
+    }
+
+    /** WAIT_CONSECUTIVE: n e, opcionalmente, um timeout em ms, como em WAIT_SIMULTANEOUS. */
+    private void handleWaitConsecutive(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int n = in.readInt();
+        long timeoutMillis = readWaitTimeout(in);
+        if (n <= 0 || timeoutMillis < 0) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, n <= 0 ? "n must be >= 1" : "Invalid timeout");
+            return;
+        }
+        replyWhenComplete(reqId, notificationManager.waitConsecutive(n), timeoutMillis, (body, res) -> {
             if (res != null) {
                 body.writeByte((byte)1);
                 IOUtils.writeString(body, res);
             } else body.writeByte((byte)0);
-            writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        });
+    }
+
+    // O timeout é opcional no fim do payload (os clientes antigos não o enviam)
+    private static long readWaitTimeout(DataInputStream in) throws IOException {
+        return in.available() >= Long.BYTES ? in.readLong() : 0;
+    }
+
+    private interface ResultWriter<T> {
+        void write(DataOutputStream body, T result) throws IOException;
+    }
+
+    // A resposta é escrita por um worker do executor, não pela thread que completou a espera (a do anel do
+    // DayManager ou a do timeout)
+    private <T> void replyWhenComplete(int reqId, CompletableFuture<T> wait, long timeoutMillis,
+                                       ResultWriter<T> writer) {
+        if (timeoutMillis > 0) wait.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        wait.whenCompleteAsync((result, t) -> {
+            try {
+                if (t == null) {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    DataOutputStream body = new DataOutputStream(bout);
+                    body.writeByte(Protocol.STATUS_OK);
+                    writer.write(body, result);
+                    writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
+                } else if (t instanceof TimeoutException) {
+                    writeError(reqId, Protocol.STATUS_TIMEOUT, "Wait timed out");
+                } else {
+                    writeError(reqId, Protocol.STATUS_INTERNAL_ERROR, "Wait failed: " + t.getMessage());
+                }
+            } catch (IOException ioe) {
+                System.err.println("I/O error handling request: " + ioe.getMessage());
+                sink.close();
+            }
+        }, requestExecutor::resume);
+    }
+
+    /**
+     * SUBSCRIBE_AGG: produto, nº de dias e intervalo mínimo entre pushes em ms (0 = a cada mudança).
+     * A resposta traz o id da subscrição (o requestId do pedido); os valores seguem em frames SERVER_PUSH
+     * com esse id, a primeira logo a seguir à resposta.
+     */
+    private void handleSubscribe(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String product = IOUtils.readString(in);
+        int days = in.readInt();
+        long minIntervalMillis = in.readLong();
+        if (product == null || days <= 0 || minIntervalMillis < 0) {
+            writeError(reqId, Protocol.STATUS_INVALID_REQUEST, "Invalid subscription");
+            return;
+        }
+
+        SubscriptionManager.Subscription s;
+        stateLock.lock();
+        try {
+            if (closed || subscriptions.size() >= MAX_SUBSCRIPTIONS || subscriptions.containsKey(reqId)) {
+                s = null;
+            } else {
+                s = subscriptionManager.subscribe(sink, reqId, product, days, minIntervalMillis,
+                        this::subscriptionFailed);
+                subscriptions.put(reqId, s);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (s == null) {
+            writeError(reqId, Protocol.STATUS_RESOURCE_LIMIT, "Too many subscriptions");
+            return;
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bout);
+        body.writeByte(Protocol.STATUS_OK);
+        body.writeInt(s.getId());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
+
+        subscriptionManager.pushCurrent(s);
+    }
+
+    private void handleUnsubscribe(int reqId, byte[] payload) throws IOException {
+        if (!checkAuth(reqId)) return;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int id = in.readInt();
+        SubscriptionManager.Subscription s;
+        stateLock.lock();
+        try {
+            s = subscriptions.remove(id);
+        } finally {
+            stateLock.unlock();
         }
+        if (s == null) {
+            writeError(reqId, Protocol.STATUS_NOT_FOUND, "No subscription " + id);
+            return;
+        }
+        subscriptionManager.unsubscribe(s);
+        sendSimpleResponse(reqId, Protocol.STATUS_OK);
+    }
+
+    // O SubscriptionManager já a removeu; sai também do mapa, para deixar de contar para MAX_SUBSCRIPTIONS
+    private void subscriptionFailed(SubscriptionManager.Subscription s) {
+        stateLock.lock();
+        try {
+            subscriptions.remove(s.getId(), s);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Chamado pelo transporte quando a conexão fecha: termina as subscrições da conexão.
+     * Pode ser chamado mais do que uma vez.
+     */
+    public void onClose() {
+        List<SubscriptionManager.Subscription> toRemove;
+        stateLock.lock();
+        try {
+            closed = true;
+            toRemove = new ArrayList<>(subscriptions.values());
+            subscriptions.clear();
+        } finally {
+            stateLock.unlock();
+        }
+        for (SubscriptionManager.Subscription s : toRemove) subscriptionManager.unsubscribe(s);
     }
 
     // Auxiliares
 
-    private boolean checkAuth(DataOutputStream dout, int reqId) throws IOException {
+    private boolean checkAuth(int reqId) throws IOException {
         stateLock.lock();
         try {
             if (authenticated) return true;
         } finally {
             stateLock.unlock();
         }
-        writeError(dout, reqId, Protocol.STATUS_AUTH_REQUIRED, "Login required");
+        writeError(reqId, Protocol.STATUS_AUTH_REQUIRED, "Login required");
         return false;
     }
 
-    private void sendSimpleResponse(DataOutputStream dout, int reqId, byte status) throws IOException {
+    private void sendSimpleResponse(int reqId, byte status) throws IOException {
         byte[] p = {status};
-        writeMessage(dout, reqId, Protocol.RESPONSE, p);
+        writeMessage(reqId, Protocol.RESPONSE, p);
     }
 
-    private void writeError(DataOutputStream dout, int reqId, byte status, String msg) throws IOException {
+    private void writeError(int reqId, byte status, String msg) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream body = new DataOutputStream(bout);
         body.writeByte(status);
         IOUtils.writeString(body, msg);
-        writeMessage(dout, reqId, Protocol.RESPONSE, bout.toByteArray());
+        writeMessage(reqId, Protocol.RESPONSE, bout.toByteArray());
     }
 
-    private void writeMessage(DataOutputStream dout, int reqId, byte op, byte[] payload) throws IOException {
-        Message m = new Message(reqId, op, payload);
-        outLock.lock();
-        try {
-            m.writeTo(dout);
-            dout.flush();
-        } finally {
-            outLock.unlock();
-        }
+    private void writeMessage(int reqId, byte op, byte[] payload) throws IOException {
+        sink.send(new Message(reqId, op, payload));
     }
 }
\ No newline at end of file
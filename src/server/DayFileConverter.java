@@ -0,0 +1,27 @@
+package server;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Converte os dias gravados no formato antigo para o formato fixo (ver PersistenceManager).
+ * Uso: java -cp bin server.DayFileConverter [pasta de dados]
+ */
+public class DayFileConverter {
+    public static void main(String[] args) throws IOException {
+        String dir = args.length >= 1 ? args[0] : "data";
+        PersistenceManager pm = new PersistenceManager(dir);
+
+        List<Integer> days = pm.listPersistedDays();
+        Collections.sort(days);
+        int converted = 0;
+        for (int day : days) {
+            if (pm.convertDay(day)) {
+                converted++;
+                System.out.println("Dia " + day + " convertido.");
+            }
+        }
+        System.out.println(converted + " de " + days.size() + " dias convertidos em " + dir + ".");
+    }
+}
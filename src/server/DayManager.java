@@ -1,92 +1,389 @@
 package server;
 
 import server.model.Event;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Dia aberto e fecho de dias.
+ * Os eventos do dia aberto ficam em colunas primitivas (ChunkedEventList), com os nomes de produto internados
+ * no ProductDictionary do servidor; os snapshots e o dia fechado são EventColumns. Os eventos entregues aos
+ * listeners têm sempre o productId preenchido.
+ * As colunas estão repartidas por stripes, cada uma com o seu lock e a sua ChunkedEventList:
+ * um append só adquire o lock da sua stripe, pelo que conexões diferentes não se bloqueiam entre si.
+ * O fecho do dia e os snapshots adquirem os locks de todas as stripes (sempre pela mesma ordem), por isso
+ * veem o dia inteiro de forma atómica. Cada conexão usa um Appender fixo numa stripe, o que mantém a ordem
+ * dos seus eventos; entre stripes os eventos aparecem stripe a stripe.
+ *
+ * Os listeners não correm na thread do append: cada evento é publicado num EventRing e cada listener
+ * consome-o na sua thread. Os eventos de uma mesma thread chegam aos listeners pela ordem dos appends.
+ *
+ * Um evento só entra no dia (e no anel) depois de estar no WAL, com o fsync no modo SYNC; se a escrita
+ * falhar o evento não fica em lado nenhum. A escrita no WAL é feita sem nenhum lock de stripe: o append
+ * regista-se primeiro na stripe (inFlight) e só volta a adquirir o lock para acrescentar às colunas.
+ * O fecho do dia impede novos registos, espera que os appends registados terminem (os seus eventos ficam no
+ * WAL e no dia que fecha) e só então muda de WAL e publica o fecho no anel, entre o último evento do dia e o
+ * primeiro do seguinte.
+ */
 public class DayManager {
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final List<Event> currentDay = new ArrayList<>();
-    private int dayIndex;
+    private final ProductDictionary dictionary;
+    private final Stripe[] stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    // Escrito só com os locks de todas as stripes; lido sem locks
+    private volatile int dayIndex;
+    // WAL do dia aberto; null = sem WAL
+    private final EventLog log;
 
-    private final ReentrantLock listenersLock = new ReentrantLock();
-    private final List<EventListener> listeners = new ArrayList<>();
+    private static final int RING_CAPACITY = 1 << 16;
+    private final EventRing ring = new EventRing(RING_CAPACITY);
+    // Eventos recuperados do WAL ainda por publicar no anel; ver replayRecovered
+    private List<Event> recovered;
 
+    /**
+     * Recebe os eventos e os fechos de dia numa thread própria, pela ordem do anel (a mesma para todos os
+     * listeners), em lotes. Não deve esperar por appends nem snapshots do DayManager: um listener parado
+     * acaba por parar os appends quando o anel enche.
+     */
     public interface EventListener {
         void onEvent(Event e);
+
+        // Chamado depois de um dia ser fechado, com todos os seus eventos
+        default void onDayClosed(int dayIndex, EventColumns events) {}
+
+        // Antes e depois de cada lote; position é a posição no anel (ver getRingPosition) do primeiro item
+        default void beginBatch(long position) {}
+
+        default void endBatch() {}
+    }
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        // Só é substituída (no fecho do dia) com o lock da stripe
+        ChunkedEventList events = new ChunkedEventList(dictionary);
+        // Appends registados nesta stripe que ainda não terminaram (WAL, colunas e anel)
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Sinalizado quando o fecho do dia termina e os appends à espera se podem registar
+        final Condition reopened = lock.newCondition();
+    }
+
+    // Um fecho do dia de cada vez
+    private final ReentrantLock closeLock = new ReentrantLock();
+    // Há um fecho do dia a decorrer: não se registam appends novos (escrito com os locks de todas as stripes)
+    private boolean closing = false;
+    // O fecho do dia espera aqui que inFlight chegue a zero em todas as stripes
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = drainLock.newCondition();
+    private volatile boolean draining = false;
+
+    /** Ponto de entrada de uma conexão: todos os seus eventos vão para a mesma stripe. */
+    public final class Appender {
+        private final Stripe stripe;
+
+        private Appender(Stripe stripe) {
+            this.stripe = stripe;
+        }
+
+        public void addEvent(Event e) throws IOException {
+            append(stripe, e);
+        }
+
+        public void addEvents(List<Event> events) throws IOException {
+            append(stripe, events);
+        }
     }
 
     public DayManager(int startDay) {
+        this(startDay, Collections.emptyList(), null);
+    }
+
+    /**
+     * recovered são os eventos do dia startDay lidos do WAL no arranque; log já deve estar aberto nesse dia.
+     * Entram logo no dia aberto, mas só chegam aos listeners com replayRecovered.
+     */
+    public DayManager(int startDay, List<Event> recovered, EventLog log) {
+        this(startDay, recovered, log, new ProductDictionary(), defaultStripes());
+    }
+
+    public DayManager(int startDay, List<Event> recovered, EventLog log, int stripeCount) {
+        this(startDay, recovered, log, new ProductDictionary(), stripeCount);
+    }
+
+    public DayManager(int startDay, List<Event> recovered, EventLog log, ProductDictionary dictionary) {
+        this(startDay, recovered, log, dictionary, defaultStripes());
+    }
+
+    public DayManager(int startDay, List<Event> recovered, EventLog log, ProductDictionary dictionary,
+                      int stripeCount) {
+        if (stripeCount <= 0) throw new IllegalArgumentException("stripeCount must be > 0");
+        this.dictionary = dictionary;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
         this.dayIndex = startDay;
+        this.recovered = withIds(recovered);
+        this.stripes[0].events.addAll(this.recovered);
+        this.log = log;
+    }
+
+    // Uma stripe por core (potência de 2)
+    private static int defaultStripes() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return cores <= 1 ? 1 : Integer.highestOneBit(cores - 1) << 1;
+    }
+
+    public Appender newAppender() {
+        return new Appender(stripes[Math.floorMod(nextStripe.getAndIncrement(), stripes.length)]);
+    }
+
+    // Sem Appender: a stripe é escolhida pela thread que faz o pedido
+    private Stripe stripeOfCurrentThread() {
+        return stripes[Math.floorMod(Thread.currentThread().threadId(), stripes.length)];
+    }
+
+    public void addEvent(Event e) throws IOException {
+        append(stripeOfCurrentThread(), e);
     }
 
-    public void addEvent(Event e) {
-        lock.writeLock().lock();
+    /**
+     * Adiciona um lote de eventos ao dia atual com uma única aquisição do lock.
+     * Os listeners são notificados depois, pela ordem do lote.
+     */
+    public void addEvents(List<Event> events) throws IOException {
+        append(stripeOfCurrentThread(), events);
+    }
+
+    // O evento com o id do dicionário do servidor (os criados pelo ConnectionHandler já o trazem)
+    private Event withId(Event e) {
+        if (e.getProductId() >= 0) return e;
+        int id = dictionary.intern(e.getProductName());
+        return new Event(id, dictionary.name(id), e.getQuantity(), e.getPrice(), e.getTimestamp());
+    }
+
+    private List<Event> withIds(List<Event> events) {
+        for (Event e : events) {
+            if (e.getProductId() >= 0) continue;
+            List<Event> res = new ArrayList<>(events.size());
+            for (Event x : events) res.add(withId(x));
+            return res;
+        }
+        return events;
+    }
+
+    private void append(Stripe stripe, Event e) throws IOException {
+        e = withId(e);
+        enter(stripe);
         try {
-            currentDay.add(e);
+            if (log != null) log.awaitDurable(log.append(e));
+            stripe.lock.lock();
+            try {
+                stripe.events.add(e.getProductId(), e.getQuantity(), e.getPrice(), e.getTimestamp());
+            } finally {
+                stripe.lock.unlock();
+            }
+            ring.publish(e);
         } finally {
-            lock.writeLock().unlock();;
+            endAppend(stripe);
         }
-        notifyListeners(e);
     }
 
-    private void notifyListeners(Event e) {
-        List<EventListener> copy;
-        listenersLock.lock();
+    private void append(Stripe stripe, List<Event> events) throws IOException {
+        events = withIds(events);
+        enter(stripe);
         try {
-            if (listeners.isEmpty()) return;
-            copy = new ArrayList<>(listeners);
+            if (log != null) log.awaitDurable(log.append(events));
+            stripe.lock.lock();
+            try {
+                for (Event e : events) {
+                    stripe.events.add(e.getProductId(), e.getQuantity(), e.getPrice(), e.getTimestamp());
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            ring.publishAll(events);
+        } finally {
+            endAppend(stripe);
+        }
+    }
+
+    // Regista um append na stripe; durante um fecho do dia espera que ele termine. Um append registado
+    // pertence ao dia aberto neste momento: o fecho não muda de WAL nem de dia sem ele terminar
+    private void enter(Stripe stripe) {
+        stripe.lock.lock();
+        try {
+            while (closing) stripe.reopened.awaitUninterruptibly();
+            stripe.inFlight.incrementAndGet();
         } finally {
-            listenersLock.unlock();
+            stripe.lock.unlock();
         }
-        for (EventListener l : copy) {
+    }
+
+    private void endAppend(Stripe stripe) {
+        if (stripe.inFlight.decrementAndGet() == 0 && draining) {
+            drainLock.lock();
             try {
-                l.onEvent(e);
-            } catch (Throwable t) {
-                System.err.println("Listener error: " + t.getMessage());
+                drained.signalAll();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    // Chamado sem locks de stripe (os appends registados precisam deles para terminar), com closing ativo:
+    // inFlight já não aumenta
+    private void awaitInFlight() {
+        drainLock.lock();
+        try {
+            draining = true;
+            for (Stripe s : stripes) {
+                while (s.inFlight.get() > 0) drained.awaitUninterruptibly();
             }
+            draining = false;
+        } finally {
+            drainLock.unlock();
         }
     }
 
+    /** O listener recebe os eventos e os fechos de dia publicados a partir de agora. */
     public void addEventListener(EventListener listener) {
-        listenersLock.lock();
+        ring.subscribe(listener);
+    }
+
+    /**
+     * Publica para os listeners os eventos recuperados do WAL, como se tivessem acabado de chegar: sem isto
+     * o estado dos listeners (p.ex. os produtos já vendidos no dia) não contaria com os eventos anteriores
+     * ao crash. Chamar uma vez, depois de registar os listeners e antes de aceitar pedidos; as chamadas
+     * seguintes não fazem nada.
+     */
+    public void replayRecovered() {
+        Stripe stripe = stripes[0];
+        List<Event> events;
+        enter(stripe);
+        stripe.lock.lock();
+        try {
+            events = recovered;
+            recovered = Collections.emptyList();
+        } finally {
+            stripe.lock.unlock();
+        }
+        try {
+            if (!events.isEmpty()) ring.publishAll(events);
+        } finally {
+            endAppend(stripe);
+        }
+    }
+
+    /**
+     * Nº de itens (eventos e fechos de dia) publicados até agora para os listeners. Um listener que já
+     * processou position itens viu os eventos de todos os appends que terminaram antes desta chamada.
+     */
+    public long getRingPosition() {
+        return ring.getPosition();
+    }
+
+    private void lockAll() {
+        for (Stripe s : stripes) s.lock.lock();
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) stripes[i].lock.unlock();
+    }
+
+    // Chamado com todos os locks: junta os snapshots das stripes numa só vista, sem copiar eventos
+    private EventColumns snapshotAll() {
+        List<EventColumns> parts = new ArrayList<>(stripes.length);
+        for (Stripe s : stripes) parts.add(s.events.snapshot());
+        return EventColumns.concat(dictionary, parts);
+    }
+
+    /** Recebe o dia fechado durante o fecho, ainda com os locks de todas as stripes. */
+    public interface DayCloseHandler {
+        void dayClosed(int dayIndex, EventColumns events);
+    }
+
+    /**
+     * Fecha o dia aberto e começa o seguinte; retorna o índice do dia fechado.
+     * handler recebe os eventos do dia fechado (sem cópia) antes de o dia seguinte começar, com os locks de
+     * todas as stripes: o que registar aí (p.ex. o dia em gravação no PersistenceManager) já é visível para
+     * quem vir o novo dayIndex. Deve ser rápido e não usar o DayManager.
+     * Os appends que chegam durante o fecho esperam por ele e entram no dia seguinte.
+     */
+    public int closeCurrentDayAndStartNew(DayCloseHandler handler) throws IOException {
+        int closedDay;
+        closeLock.lock();
         try {
-            listeners.add(listener);
+            lockAll();
+            closing = true;
+            unlockAll();
+            awaitInFlight();
+            closedDay = closeWithAllLocks(handler);
         } finally {
-            listenersLock.unlock();
+            closeLock.unlock();
         }
+        return closedDay;
     }
 
-    public List<Event> closeCurrentDayAndStartNew() {
-        lock.writeLock().lock();
+    // Com closing ativo e sem appends registados: muda de WAL e de dia e reabre os registos
+    private int closeWithAllLocks(DayCloseHandler handler) throws IOException {
+        int closedDay;
+        lockAll();
         try {
-            List<Event> toPersist = new ArrayList<>(currentDay);
-            currentDay.clear();
-            dayIndex++;
-            return toPersist;
+            // O WAL do dia fechado fica em disco (com fsync) até o dia estar gravado; ver discardLog
+            if (log != null) log.roll(dayIndex + 1);
+            EventColumns closed = snapshotAll();
+            closedDay = dayIndex;
+            handler.dayClosed(closedDay, closed);
+            for (Stripe s : stripes) s.events = new ChunkedEventList(dictionary);
+            dayIndex = closedDay + 1;
+            ring.publish(new EventRing.DayClosed(closedDay, closed));
         } finally {
-            lock.writeLock().unlock();
+            closing = false;
+            for (Stripe s : stripes) s.reopened.signalAll();
+            unlockAll();
         }
+        return closedDay;
+    }
+
+    /** O dia já está gravado: o seu WAL deixa de ser preciso. */
+    public void discardLog(int day) {
+        if (log != null) log.discard(day);
     }
 
     public int getDayIndex() {
-        lock.readLock().lock();
+        return dayIndex;
+    }
+
+    /** Dicionário dos productIds usados nas EventColumns e nos eventos deste DayManager. */
+    public ProductDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Snapshot imutável dos eventos do dia aberto, sem cópia; os eventos adicionados depois não aparecem.
+     */
+    public EventColumns getDayEvents() {
+        lockAll();
         try {
-            return dayIndex;
+            return snapshotAll();
         } finally {
-            lock.readLock().unlock();
+            unlockAll();
         }
     }
 
-    public List<Event> getDayEvents() {
-        lock.readLock().lock();
+    /**
+     * Como getDayEvents, mas só se day ainda for o dia aberto; caso contrário retorna null.
+     * A verificação e o snapshot são atómicos em relação ao fecho do dia.
+     */
+    public EventColumns getDayEvents(int day) {
+        lockAll();
         try {
-            return new ArrayList<>(currentDay);
+            return day == dayIndex ? snapshotAll() : null;
         } finally {
-            lock.readLock().unlock();
+            unlockAll();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+package server;
+
+import server.model.Event;
+import server.model.PerDayAgg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Eventos de um dia em colunas primitivas (productId:int, quantity:int, price:double, timestamp:long), em
+ * blocos de ChunkedEventList.CHUNK_SIZE. Os nomes dos produtos estão no ProductDictionary; nenhum Event é
+ * guardado nem criado para percorrer os eventos. Imutável: é um snapshot de uma ou mais ChunkedEventList.
+ */
+public final class EventColumns {
+    private final ProductDictionary dictionary;
+    private final Part[] parts;
+    private final int[] starts;   // índice do primeiro evento de cada parte
+    private final int size;
+
+    // Colunas de uma ChunkedEventList até size; os blocos são partilhados com ela, sem cópia
+    static final class Part {
+        final int[][] products;
+        final int[][] quantities;
+        final double[][] prices;
+        final long[][] timestamps;
+        final int size;
+
+        Part(int[][] products, int[][] quantities, double[][] prices, long[][] timestamps, int size) {
+            this.products = products;
+            this.quantities = quantities;
+            this.prices = prices;
+            this.timestamps = timestamps;
+            this.size = size;
+        }
+    }
+
+    EventColumns(ProductDictionary dictionary, Part[] parts) {
+        this.dictionary = dictionary;
+        // Partes vazias são descartadas, para o Cursor não ter de as saltar
+        List<Part> nonEmpty = new ArrayList<>(parts.length);
+        for (Part p : parts) {
+            if (p.size > 0) nonEmpty.add(p);
+        }
+        this.parts = nonEmpty.toArray(new Part[0]);
+        this.starts = new int[this.parts.length];
+        int total = 0;
+        for (int i = 0; i < this.parts.length; i++) {
+            starts[i] = total;
+            total += this.parts[i].size;
+        }
+        this.size = total;
+    }
+
+    /** Colunas de uma lista de eventos, com um dicionário próprio. */
+    public static EventColumns of(List<Event> events) {
+        ChunkedEventList list = new ChunkedEventList(new ProductDictionary());
+        list.addAll(events);
+        return list.snapshot();
+    }
+
+    /** Várias colunas seguidas (com o mesmo dicionário) numa só, sem copiar eventos. */
+    static EventColumns concat(ProductDictionary dictionary, List<EventColumns> columns) {
+        List<Part> parts = new ArrayList<>();
+        for (EventColumns c : columns) parts.addAll(Arrays.asList(c.parts));
+        return new EventColumns(dictionary, parts.toArray(new Part[0]));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ProductDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Leitura por índice sem procurar a parte em cada acesso: seek só avança a partir da parte atual e volta
+     * ao início quando o índice recua. Para percorrer índices (quase sempre) crescentes, como os de cada
+     * produto na ordenação de PersistenceManager.writeDayFiles; para ler tudo por ordem, scan é mais barato.
+     */
+    public final class Cursor {
+        private int part;
+        private int chunk;
+        private int offset;
+
+        public void seek(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            if (index < starts[part]) part = 0;
+            while (part + 1 < parts.length && index >= starts[part + 1]) part++;
+            int i = index - starts[part];
+            chunk = i >>> ChunkedEventList.CHUNK_SHIFT;
+            offset = i & ChunkedEventList.CHUNK_MASK;
+        }
+
+        public int productId() {
+            return parts[part].products[chunk][offset];
+        }
+
+        public int quantity() {
+            return parts[part].quantities[chunk][offset];
+        }
+
+        public double price() {
+            return parts[part].prices[chunk][offset];
+        }
+
+        public long timestamp() {
+            return parts[part].timestamps[chunk][offset];
+        }
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Percorre os eventos por ordem, bloco a bloco. O visitor recebe primeiro os nomes do dicionário
+     * indexados por productId (com todos os produtos conhecidos, não só os deste dia).
+     */
+    public void scan(PersistenceManager.RecordVisitor visitor) throws IOException {
+        visitor.dictionary(dictionary.names());
+        scan(null, visitor);
+    }
+
+    /**
+     * Como scan, mas só visita os eventos dos produtos pedidos: os nomes são resolvidos para ids uma vez
+     * e cada evento é filtrado por um acesso a um array.
+     */
+    public void scanProducts(Collection<String> wanted, PersistenceManager.RecordVisitor visitor) throws IOException {
+        String[] names = dictionary.names();
+        boolean[] keep = new boolean[names.length];
+        for (String product : wanted) {
+            int id = dictionary.idOf(product);
+            if (id >= 0 && id < keep.length) keep[id] = true;
+        }
+        visitor.dictionary(names);
+        scan(keep, visitor);
+    }
+
+    // keep == null: todos os eventos
+    private void scan(boolean[] keep, PersistenceManager.RecordVisitor visitor) throws IOException {
+        for (Part part : parts) {
+            int remaining = part.size;
+            for (int c = 0; remaining > 0; c++) {
+                int[] products = part.products[c];
+                int[] quantities = part.quantities[c];
+                double[] prices = part.prices[c];
+                long[] timestamps = part.timestamps[c];
+                int n = Math.min(remaining, ChunkedEventList.CHUNK_SIZE);
+                for (int i = 0; i < n; i++) {
+                    if (keep == null || keep[products[i]]) {
+                        visitor.record(products[i], quantities[i], prices[i], timestamps[i]);
+                    }
+                }
+                remaining -= n;
+            }
+        }
+    }
+
+    /** Agregados por produto (só os produtos com eventos). */
+    public Map<String, PerDayAgg> summarize() {
+        PerDayAgg[] aggs = summarizeById();
+        Map<String, PerDayAgg> summary = new HashMap<>();
+        for (int id = 0; id < aggs.length; id++) {
+            if (aggs[id] != null) summary.put(dictionary.name(id), aggs[id]);
+        }
+        return summary;
+    }
+
+    /** Agregados indexados por productId; null para os produtos sem eventos. */
+    public PerDayAgg[] summarizeById() {
+        PerDayAgg[] aggs = new PerDayAgg[dictionary.size()];
+        for (Part part : parts) {
+            int remaining = part.size;
+            for (int c = 0; remaining > 0; c++) {
+                int[] products = part.products[c];
+                int[] quantities = part.quantities[c];
+                double[] prices = part.prices[c];
+                int n = Math.min(remaining, ChunkedEventList.CHUNK_SIZE);
+                for (int i = 0; i < n; i++) {
+                    PerDayAgg agg = aggs[products[i]];
+                    if (agg == null) agg = aggs[products[i]] = new PerDayAgg();
+                    agg.incorporate(quantities[i], prices[i]);
+                }
+                remaining -= n;
+            }
+        }
+        return aggs;
+    }
+}
@@ -0,0 +1,327 @@
+package server;
+
+import server.model.Event;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log dos eventos do dia aberto (data/wal-N.log), só com escritas no fim do ficheiro.
+ * Cada append é um registo: length:int, crc32:int, payload = count:int seguido de count x Event.writeTo.
+ * Na leitura, um registo incompleto ou com CRC errado (escrita cortada por um crash) marca o fim do log.
+ *
+ * Durabilidade:
+ *   - OS:    o registo é escrito no ficheiro (sobrevive a um crash do processo); fsync só ao mudar de dia e no fim
+ *   - BATCH: uma thread faz fsync a cada batchEvents eventos ou batchMillis ms; o append não espera
+ *   - SYNC:  o append só retorna depois do fsync; os appends concorrentes partilham o mesmo fsync (group commit)
+ */
+public class EventLog {
+    public enum Durability { OS, BATCH, SYNC }
+
+    private final File dir;
+    private final Durability durability;
+    private final int batchEvents;
+    private final long batchMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition durableChanged = lock.newCondition();
+    private final Condition syncNeeded = lock.newCondition();
+
+    private FileChannel channel = null;
+    private int day = -1;
+    // Bytes escritos / com fsync, contados desde o arranque (não voltam a zero ao mudar de ficheiro)
+    private long written = 0;
+    private long durable = 0;
+    private int unsyncedEvents = 0;
+    private boolean syncing = false;
+    private boolean closed = false;
+    private long syncCount = 0;
+    private Thread flusher = null;
+
+    public EventLog(File dir, Durability durability, int batchEvents, long batchMillis) {
+        if (batchEvents <= 0) throw new IllegalArgumentException("batchEvents must be > 0");
+        if (batchMillis <= 0) throw new IllegalArgumentException("batchMillis must be > 0");
+        this.dir = dir;
+        this.durability = durability;
+        this.batchEvents = batchEvents;
+        this.batchMillis = batchMillis;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    private File logFile(int dayIndex) {
+        return new File(dir, "wal-" + dayIndex + ".log");
+    }
+
+    /**
+     * Abre (ou cria) o log do dia para escrita, descartando um registo final incompleto.
+     */
+    public void open(int dayIndex) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Event log closed");
+            if (channel != null) throw new IllegalStateException("Event log already open for day " + day);
+            openChannel(dayIndex);
+            if (durability == Durability.BATCH && flusher == null) {
+                flusher = new Thread(this::flusherLoop, "wal-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com lock adquirido
+    private void openChannel(int dayIndex) throws IOException {
+        File f = logFile(dayIndex);
+        long valid = f.exists() ? scan(f, null) : 0;
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (ch.size() > valid) ch.truncate(valid);
+        ch.position(valid);
+        channel = ch;
+        day = dayIndex;
+    }
+
+    public long append(Event e) throws IOException {
+        return append(Collections.singletonList(e));
+    }
+
+    /**
+     * Escreve os eventos num só registo. Retorna a posição a passar a awaitDurable.
+     */
+    public long append(List<Event> events) throws IOException {
+        ByteBuffer record = encode(events);
+        lock.lock();
+        try {
+            if (channel == null) throw new IOException("Event log not open");
+            while (record.hasRemaining()) written += channel.write(record);
+            unsyncedEvents += events.size();
+            if (durability == Durability.BATCH && unsyncedEvents >= batchEvents) syncNeeded.signal();
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Em modo SYNC espera que o log esteja em disco até position; nos outros modos retorna logo.
+     */
+    public void awaitDurable(long position) throws IOException {
+        if (durability != Durability.SYNC) return;
+        lock.lock();
+        try {
+            syncTo(position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com lock adquirido. Só há um fsync de cada vez: quem chega durante um fsync espera e,
+    // se ainda não ficou coberto, faz o seguinte para todos os que entretanto escreveram.
+    private void syncTo(long position) throws IOException {
+        while (durable < position) {
+            if (syncing) {
+                durableChanged.awaitUninterruptibly();
+                continue;
+            }
+            if (channel == null) throw new IOException("Event log closed");
+            syncing = true;
+            long upTo = written;
+            unsyncedEvents = 0;
+            FileChannel ch = channel;
+            IOException failure = null;
+            lock.unlock();
+            try {
+                ch.force(false);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                lock.lock();
+            }
+            syncing = false;
+            if (failure == null) {
+                durable = Math.max(durable, upTo);
+                syncCount++;
+            }
+            durableChanged.signalAll();
+            if (failure != null) throw failure;
+        }
+    }
+
+    private void flusherLoop() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (unsyncedEvents < batchEvents) syncNeeded.await(batchMillis, TimeUnit.MILLISECONDS);
+                if (closed || written == durable) continue;
+                try {
+                    syncTo(written);
+                } catch (IOException e) {
+                    System.err.println("WAL sync failed: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fecha o log do dia atual (com fsync, em qualquer modo) e abre o do dia seguinte.
+     * O ficheiro antigo fica até discard(dia), depois de o dia estar gravado.
+     */
+    public void roll(int newDay) throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) throw new IOException("Event log not open");
+            syncTo(written);
+            while (syncing) durableChanged.awaitUninterruptibly();
+            channel.close();
+            channel = null;
+            openChannel(newDay);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Apaga o log de um dia que já está gravado. O log aberto nunca é apagado. */
+    public void discard(int dayIndex) {
+        lock.lock();
+        try {
+            if (channel != null && dayIndex == day) return;
+            logFile(dayIndex).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** fsync final e fecho. */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            if (channel != null) {
+                try {
+                    syncTo(written);
+                    while (syncing) durableChanged.awaitUninterruptibly();
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close WAL: " + e.getMessage());
+                }
+                channel = null;
+            }
+            closed = true;
+            syncNeeded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /** Nº de fsyncs feitos desde o arranque. */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Eventos do log de um dia, até ao último registo completo. */
+    public List<Event> readDay(int dayIndex) throws IOException {
+        List<Event> events = new ArrayList<>();
+        File f = logFile(dayIndex);
+        if (f.exists()) scan(f, events);
+        return events;
+    }
+
+    /** Dias com log na diretoria, por ordem crescente. */
+    public List<Integer> listLogDays() {
+        List<Integer> res = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return res;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith("wal-") && name.endsWith(".log")) {
+                try {
+                    res.add(Integer.parseInt(name.substring(4, name.length() - 4)));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private static ByteBuffer encode(List<Event> events) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(16 + events.size() * 40);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(0); // length
+        out.writeInt(0); // crc
+        out.writeInt(events.size());
+        for (Event e : events) e.writeTo(out);
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap(bout.toByteArray());
+        int length = buf.capacity() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, length);
+        buf.putInt(0, length);
+        buf.putInt(4, (int) crc.getValue());
+        return buf;
+    }
+
+    // Lê os registos válidos (para out, se não for null) e retorna o tamanho da parte válida do ficheiro
+    private static long scan(File f, List<Event> out) throws IOException {
+        long valid = 0;
+        long size = f.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024))) {
+            while (true) {
+                int length;
+                int expected;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    expected = in.readInt();
+                    if (length < 4 || length > size - valid - 8) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expected) break;
+
+                if (out != null) {
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                    int count = rec.readInt();
+                    for (int i = 0; i < count; i++) out.add(Event.readFrom(rec));
+                }
+                valid += 8 + length;
+            }
+        }
+        return valid;
+    }
+}
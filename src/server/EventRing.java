@@ -0,0 +1,239 @@
+package server;
+
+import server.model.Event;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Anel limitado entre o DayManager e os seus listeners.
+ * Quem publica reserva as posições com um incremento atómico (claimed), escreve o item no slot e marca o
+ * slot com a sua posição (sequences); não há lock no caminho normal, pelo que os appends não esperam uns
+ * pelos outros nem pelos listeners. Cada listener tem uma thread e um cursor próprios e consome em lotes de
+ * até MAX_BATCH itens, só até à primeira posição ainda por escrever: todos veem os itens pela ordem das
+ * posições. O lock só é usado para adormecer e acordar threads: um listener sem itens e quem publica quando o
+ * listener mais lento está capacity itens para trás (nenhum item é perdido).
+ */
+class EventRing {
+    private static final int MAX_BATCH = 256;
+
+    /** Marca de fim de dia: todos os eventos do dia estão antes dela no anel e os do dia seguinte depois. */
+    static final class DayClosed {
+        final int dayIndex;
+        // Largado pelo último listener a recebê-lo, para o anel não segurar o dia até o slot ser reutilizado
+        private volatile EventColumns events;
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        DayClosed(int dayIndex, EventColumns events) {
+            this.dayIndex = dayIndex;
+            this.events = events;
+        }
+
+        private void delivered() {
+            if (remaining.decrementAndGet() <= 0) events = null;
+        }
+    }
+
+    private final Object[] slots;
+    // Posição do item em cada slot, escrita depois do item; o slot só pode ser lido quando coincide
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // Nº de posições reservadas desde o arranque: a posição do próximo item
+    private final AtomicLong claimed = new AtomicLong();
+    // Copy-on-write, alterado só com lock
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+    // Limite inferior do cursor mais atrasado, para quem publica não ler os cursores a cada item
+    private volatile long gatingCache = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final Condition space = lock.newCondition();
+    private final AtomicInteger waitingSubscribers = new AtomicInteger();
+    private final AtomicInteger waitingPublishers = new AtomicInteger();
+
+    private final class Subscriber implements Runnable {
+        private final DayManager.EventListener listener;
+        // Próximo item a consumir; os slots antes dele podem ser reescritos
+        private volatile long cursor;
+
+        Subscriber(DayManager.EventListener listener, long cursor) {
+            this.listener = listener;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            long next = cursor;
+            while (true) {
+                long end = availableFrom(next);
+                if (end == next) {
+                    awaitPublished(next);
+                    continue;
+                }
+                deliver(next, end);
+                next = end;
+                cursor = next;
+                if (waitingPublishers.get() > 0) signal(space);
+            }
+        }
+
+        private void deliver(long from, long to) {
+            try {
+                listener.beginBatch(from);
+            } catch (Throwable t) {
+                System.err.println("Listener error: " + t.getMessage());
+            }
+            for (long s = from; s < to; s++) {
+                Object item = slots[(int) (s & mask)];
+                try {
+                    if (item instanceof DayClosed) {
+                        DayClosed closed = (DayClosed) item;
+                        try {
+                            listener.onDayClosed(closed.dayIndex, closed.events);
+                        } finally {
+                            closed.delivered();
+                        }
+                    } else {
+                        listener.onEvent((Event) item);
+                    }
+                } catch (Throwable t) {
+                    System.err.println("Listener error: " + t.getMessage());
+                }
+            }
+            try {
+                listener.endBatch();
+            } catch (Throwable t) {
+                System.err.println("Listener error: " + t.getMessage());
+            }
+        }
+    }
+
+    EventRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2");
+        }
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, -1);
+        this.mask = capacity - 1;
+    }
+
+    /** O listener recebe os itens publicados a partir de agora, numa thread própria. */
+    void subscribe(DayManager.EventListener listener) {
+        Subscriber s;
+        int index;
+        lock.lock();
+        try {
+            // Até o cursor definitivo ser lido, o anterior impede quem já vê o subscriber de reescrever slots
+            // que ele ainda vai ler; quem não o vê reservou antes, abaixo do cursor definitivo
+            s = new Subscriber(listener, claimed.get());
+            Subscriber[] current = subscribers;
+            Subscriber[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = s;
+            subscribers = next;
+            s.cursor = claimed.get();
+            index = next.length;
+        } finally {
+            lock.unlock();
+        }
+        Thread t = new Thread(s, "listener-" + index);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void publish(Object item) {
+        long seq = claimed.getAndIncrement();
+        if (item instanceof DayClosed) {
+            // Lido depois de reservar: inclui todos os listeners cujo cursor está antes de seq
+            DayClosed closed = (DayClosed) item;
+            int listeners = subscribers.length;
+            closed.remaining.set(listeners);
+            if (listeners == 0) closed.events = null;
+        }
+        store(seq, item);
+        if (waitingSubscribers.get() > 0) signal(published);
+    }
+
+    void publishAll(List<Event> events) {
+        if (events.isEmpty()) return;
+        long first = claimed.getAndAdd(events.size());
+        for (int i = 0; i < events.size(); i++) store(first + i, events.get(i));
+        if (waitingSubscribers.get() > 0) signal(published);
+    }
+
+    /** Nº de posições reservadas até agora: a posição no anel do próximo item. */
+    long getPosition() {
+        return claimed.get();
+    }
+
+    private void store(long seq, Object item) {
+        if (seq - gatingCache >= slots.length) awaitSpace(seq);
+        int index = (int) (seq & mask);
+        slots[index] = item;
+        sequences.set(index, seq);
+    }
+
+    // Espera que todos os listeners tenham passado seq - capacity
+    private void awaitSpace(long seq) {
+        long min = minCursor(seq);
+        gatingCache = min;
+        if (seq - min < slots.length) return;
+        lock.lock();
+        waitingPublishers.incrementAndGet();
+        try {
+            while (seq - (min = minCursor(seq)) >= slots.length) {
+                // Os listeners podem estar à espera dos itens já publicados por este lote
+                if (waitingSubscribers.get() > 0) published.signalAll();
+                space.awaitUninterruptibly();
+            }
+            gatingCache = min;
+        } finally {
+            waitingPublishers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    // Sem listeners, seq não está limitado por ninguém
+    private long minCursor(long seq) {
+        long min = seq;
+        for (Subscriber s : subscribers) min = Math.min(min, s.cursor);
+        return min;
+    }
+
+    // Primeira posição a partir de from (no máximo from + MAX_BATCH) que ainda não está escrita
+    private long availableFrom(long from) {
+        long s = from;
+        long limit = from + MAX_BATCH;
+        while (s < limit && sequences.get((int) (s & mask)) == s) s++;
+        return s;
+    }
+
+    private void awaitPublished(long next) {
+        lock.lock();
+        waitingSubscribers.incrementAndGet();
+        try {
+            while (sequences.get((int) (next & mask)) != next) {
+                if (waitingPublishers.get() > 0) space.signalAll();
+                published.awaitUninterruptibly();
+            }
+        } finally {
+            waitingSubscribers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private void signal(Condition c) {
+        lock.lock();
+        try {
+            c.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -3,9 +3,12 @@ package server;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import server.model.Event;
 
@@ -53,34 +56,55 @@ public class FilterManager {
     }
 
 
+    /** Recebe os eventos de um filtro à medida que são lidos. */
+    public interface EventSink {
+        void accept(String product, int quantity, double price, long timestamp) throws IOException;
+    }
+
     public String filterByProducts(int nProducts, String products, int day) throws IOException {
         Map<String, List<Event>> map = new HashMap<>();
         List<String> productsList = Arrays.asList(products.trim().split("\\s+"));
         for(String p : productsList){
             map.put(p, new ArrayList<>());
         }
-        List<Event> dayEvents = new ArrayList<>();
-        if (day == dayManager.getDayIndex()){
-            for (Event e : dayManager.getDayEvents()){
-                dayEvents.add(e);
+        boolean found = filterEvents(productsList, day,
+                (name, quantity, price, timestamp) -> map.get(name).add(new Event(name, quantity, price, timestamp)));
+        if (!found) return "Não foram encontrados eventos";
+
+        String res = serialize(map, nProducts);
+        return res;
+    }
+
+    /**
+     * Entrega ao sink, um a um, os eventos dos produtos pedidos no dia dado, sem os juntar em memória.
+     * Retorna false (sem chamar o sink) se o dia não for o atual nem estiver gravado.
+     */
+    public boolean filterEvents(Collection<String> products, int day, EventSink sink) throws IOException {
+        Set<String> wanted = new HashSet<>(products);
+        PersistenceManager.RecordVisitor toSink = new PersistenceManager.RecordVisitor() {
+            private String[] names;
+
+            @Override
+            public void dictionary(String[] products) {
+                names = products;
             }
 
-        }
-        else if (persistenceManager.dayExists(day)) {
-            persistenceManager.streamDay(day, e -> {
-                dayEvents.add(e);
-            });
-        }
-        else return "Não foram encontrados eventos";
-        for (Event e : dayEvents) {
-            String product = e.getProductName();
-            if(productsList.contains(product)){
-                map.computeIfAbsent(product, k -> new ArrayList<>())
-                        .add(e);
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) throws IOException {
+                sink.accept(names[productId], quantity, price, timestamp);
             }
+        };
+
+        // Dia aberto: percorre as colunas em memória
+        EventColumns today = day == dayManager.getDayIndex() ? dayManager.getDayEvents(day) : null;
+        if (today != null) {
+            today.scanProducts(wanted, toSink);
+            return true;
         }
+        if (!persistenceManager.dayExists(day)) return false;
 
-        String res = serialize(map, nProducts);
-        return res;
+        // Nos ficheiros indexados só são lidas as zonas dos produtos pedidos
+        persistenceManager.scanDayProducts(day, wanted, toSink);
+        return true;
     }
 }
@@ -1,15 +1,26 @@
 package server;
 
+import server.model.Event;
+
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class MainServer {
-    private final int port;
+    // Intervalo entre relatórios dos pedidos rejeitados (só quando houve rejeições novas)
+    private static final long STATS_INTERVAL_SECONDS = 60;
+
+    private final ServerConfig config;
 
-    public MainServer(int port) {
-        this.port = port;
+    public MainServer(ServerConfig config) {
+        this.config = config;
     }
 
     public void start() throws IOException {
@@ -23,23 +34,104 @@ public class MainServer {
         }
         int nextDayIndex = lastDay + 1;
 
-        DayManager dm = new DayManager(nextDayIndex);
+        EventLog log = null;
+        List<Event> recovered = Collections.emptyList();
+        if (config.getWalDurability() != null) {
+            log = new EventLog(new File("data"), config.getWalDurability(),
+                    config.getWalBatchEvents(), config.getWalBatchMillis());
+            nextDayIndex = recoverFromLog(log, pm, nextDayIndex);
+            recovered = log.readDay(nextDayIndex);
+            log.open(nextDayIndex);
+            if (!recovered.isEmpty()) {
+                System.out.println("Recuperados " + recovered.size() + " eventos do dia " + nextDayIndex + " (WAL)");
+            }
+        }
+
+        // Ids dos produtos, partilhados por todos os subsistemas e mantidos entre arranques
+        ProductDictionary products = ProductDictionary.open(new File("data/products.dict"));
+
+        RequestExecutor executor = new RequestExecutor(config.getExecutorMode(), config.getWorkerThreads(),
+                config.getGlobalQueueLimit(), config.getConnectionQueueLimit());
+
+        // Grava os dias ainda em fila e fecha o WAL antes de o processo terminar
+        EventLog walToClose = log;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Pedidos: " + executor);
+            pm.close();
+            if (walToClose != null) walToClose.close();
+            products.close();
+        }, "shutdown"));
+
+        DayManager dm = new DayManager(nextDayIndex, recovered, log, products);
         AggregationManager am = new AggregationManager(dm, pm);
         FilterManager fm = new FilterManager(dm, pm);
         NotificationManager nm = new NotificationManager(dm);
 
-        System.out.println("Servidor iniciado no porto " + port + ". Dia atual: " + nextDayIndex);
+        SubscriptionManager sm = SubscriptionManager.create(am, dm, executor);
+        // Com os listeners todos registados, os eventos do WAL passam por eles antes do primeiro pedido
+        dm.replayRecovered();
+
+        System.out.println("Servidor iniciado no porto " + config.getPort() + ". Dia atual: " + nextDayIndex);
+        System.out.println("Configuração: " + config);
+        startStatsReporter(executor);
 
-        try (ServerSocket ss = new ServerSocket(port)) {
+        Function<MessageSink, ConnectionHandler> handlers =
+                sink -> new ConnectionHandler(sink, auth, dm, pm, am, fm, nm, sm, executor);
+
+        if (config.getTransport() == ServerConfig.Transport.NIO) {
+            new NioServer(config.getPort(), config.getReactorThreads(), handlers).start();
+            return;
+        }
+
+        try (ServerSocket ss = new ServerSocket(config.getPort())) {
             while (true) {
                 Socket client = ss.accept();
-                ConnectionHandler handler = new ConnectionHandler(client, auth, dm, pm, am, fm, nm);
-                new Thread(handler).start(); // Thread manual por conexão
+                new Thread(new BlockingConnection(client, handlers)).start(); // Thread manual por conexão
+            }
+        }
+    }
+
+    /**
+     * Escreve periodicamente quantos pedidos foram rejeitados por limite (STATUS_RESOURCE_LIMIT), para a
+     * sobrecarga ficar visível do lado do servidor. Sem rejeições novas não escreve nada.
+     */
+    private static void startStatsReporter(RequestExecutor executor) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastRejected = {0};
+        timer.scheduleAtFixedRate(() -> {
+            long rejected = executor.getRejectedCount();
+            if (rejected == lastRejected[0]) return;
+            System.out.println("Pedidos rejeitados: " + (rejected - lastRejected[0]) + " nos últimos "
+                    + STATS_INTERVAL_SECONDS + " s (" + executor + ")");
+            lastRejected[0] = rejected;
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Grava os dias fechados cujo WAL ficou para trás (crash antes de o dia estar no disco) e apaga os
+     * logs de dias já gravados. Retorna o dia aberto: o do log mais recente, ou nextDayIndex se não houver.
+     */
+    private static int recoverFromLog(EventLog log, PersistenceManager pm, int nextDayIndex) throws IOException {
+        List<Integer> logDays = log.listLogDays();
+        int current = nextDayIndex;
+        for (int d : logDays) current = Math.max(current, d);
+        for (int d : logDays) {
+            if (d == current) continue;
+            if (!pm.dayExists(d)) {
+                List<Event> events = log.readDay(d);
+                pm.persistDay(d, events);
+                System.out.println("Dia " + d + " recuperado do WAL (" + events.size() + " eventos)");
             }
+            log.discard(d);
         }
+        return current;
     }
 
     public static void main(String[] args) throws IOException {
-        new MainServer(12345).start();
+        new MainServer(ServerConfig.fromSystemProperties(12345)).start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package server;
+
+import common.Message;
+
+import java.io.IOException;
+
+/**
+ * Destino das respostas de uma conexão, independente do transporte (blocking ou NIO).
+ * send pode ser chamado concorrentemente por vários workers.
+ */
+public interface MessageSink {
+    void send(Message m) throws IOException;
+
+    void close();
+}
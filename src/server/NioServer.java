@@ -0,0 +1,246 @@
+package server;
+
+import common.Message;
+import common.MessageDecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Transporte não bloqueante: a thread do accept distribui os SocketChannel por um pequeno nº de reactors,
+ * cada um com o seu Selector. As frames são descodificadas incrementalmente e entregues ao ConnectionHandler.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final long MAX_PENDING_WRITE_BYTES = 64L * 1024 * 1024;
+    // Acima disto os workers que enviam esperam que o cliente leia (respostas em streaming, p.ex.)
+    private static final long WRITE_HIGH_WATER_BYTES = 1024 * 1024;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final int port;
+    private final Function<MessageSink, ConnectionHandler> handlerFactory;
+    private final Reactor[] reactors;
+
+    public NioServer(int port, int reactorThreads, Function<MessageSink, ConnectionHandler> handlerFactory) {
+        if (reactorThreads <= 0) throw new IllegalArgumentException("reactorThreads must be > 0");
+        this.port = port;
+        this.handlerFactory = handlerFactory;
+        this.reactors = new Reactor[reactorThreads];
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            Thread t = new Thread(reactors[i], "nio-reactor-" + i);
+            t.start();
+        }
+
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel ch;
+                try {
+                    ch = ssc.accept();
+                } catch (IOException e) {
+                    // P.ex. sem descritores livres (EMFILE): o servidor continua a aceitar, com uma pausa para
+                    // não ficar num ciclo de erros enquanto a causa se mantém
+                    System.err.println("Accept error: " + e.getMessage());
+                    try {
+                        Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    System.err.println("Accept error: " + e.getMessage());
+                    try { ch.close(); } catch (IOException ignored) {}
+                    continue;
+                }
+                reactors[next].register(ch);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel ch) {
+            tasks.add(() -> {
+                try {
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(this, ch, key));
+                } catch (IOException e) {
+                    System.err.println("Register error: " + e.getMessage());
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            });
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection c = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) c.onReadable();
+                            if (key.isValid() && key.isWritable()) c.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Reactor error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private final class NioConnection implements MessageSink {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ConnectionHandler handler;
+        private final MessageDecoder decoder = new MessageDecoder(MAX_FRAME_LENGTH);
+        private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Condition drained = writeLock.newCondition();
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private long pendingBytes = 0;
+        private boolean writeInterest = false;
+        private boolean closed = false;
+
+        NioConnection(Reactor reactor, SocketChannel channel, SelectionKey key) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.key = key;
+            this.handler = handlerFactory.apply(this);
+        }
+
+        // Só chamado pela thread do reactor
+        void onReadable() throws IOException {
+            int n = channel.read(readBuf);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuf.flip();
+            decoder.decode(readBuf, handler::dispatch);
+            readBuf.compact();
+        }
+
+        // Só chamado pela thread do reactor
+        void onWritable() throws IOException {
+            writeLock.lock();
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer head = writeQueue.peek();
+                    int written = channel.write(head);
+                    pendingBytes -= written;
+                    if (pendingBytes <= WRITE_HIGH_WATER_BYTES) drained.signalAll();
+                    if (head.hasRemaining()) return;
+                    writeQueue.poll();
+                }
+                writeInterest = false;
+                key.interestOps(SelectionKey.OP_READ);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void send(Message m) throws IOException {
+            ByteBuffer buf = m.toByteBuffer();
+            writeLock.lock();
+            try {
+                if (closed) throw new IOException("Connection closed");
+                // Caminho rápido: sem nada em fila, tenta escrever já a partir da thread do worker
+                if (writeQueue.isEmpty()) {
+                    channel.write(buf);
+                    if (!buf.hasRemaining()) return;
+                }
+                if (pendingBytes + buf.remaining() > MAX_PENDING_WRITE_BYTES) {
+                    // A resposta perdida deixaria o cliente num estado inconsistente: a conexão termina aqui
+                    close();
+                    throw new IOException("Client too slow, pending output over limit");
+                }
+                writeQueue.add(buf);
+                pendingBytes += buf.remaining();
+                if (!writeInterest) {
+                    writeInterest = true;
+                    reactor.execute(() -> {
+                        if (key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    });
+                }
+                // A thread do reactor nunca espera (é ela que esvazia a fila)
+                if (Thread.currentThread() != reactor.thread) {
+                    while (pendingBytes > WRITE_HIGH_WATER_BYTES && !closed) drained.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending");
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            writeLock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                writeQueue.clear();
+                pendingBytes = 0;
+                drained.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            handler.onClose();
+        }
+    }
+}
@@ -3,165 +3,395 @@ package server;
 import server.model.Event;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.locks.Condition;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Esperas por produtos no dia aberto. Os produtos são identificados pelo id do ProductDictionary do servidor:
+ * o estado por evento (produtos vistos, último produto) são comparações de ints e um BitSet. Uma espera não
+ * acrescenta nomes ao dicionário (que é gravado em disco): um produto que ele ainda não conhece recebe um
+ * id provisório negativo, válido até ao fim do dia, que passa a ser o do dicionário no seu primeiro evento.
+ *
+ * As esperas estão indexadas, para um evento só tocar nas que pode completar:
+ *   - simultâneas: por um produto ainda não visto do par (quando chega, passam para o outro ou completam)
+ *   - consecutivas registadas durante a sequência atual: pelo streak absoluto que as completa
+ *   - consecutivas à espera de uma sequência nova: por n
+ * Cada evento custa O(log esperas) mais as esperas que completa.
+ *
+ * Os eventos chegam pelo anel do DayManager, numa thread própria e em lotes (o lock é adquirido uma vez por
+ * lote), pelo que os appends não esperam pela avaliação das esperas. Uma espera conta a partir da posição
+ * do anel em que foi pedida: até a thread do anel lá chegar fica em pending, e só é ativada (indexada, com
+ * o estado do dia nesse ponto) imediatamente antes do item nessa posição. O fecho do dia chega pelo mesmo
+ * anel (onDayClosed) e termina as esperas pedidas antes dele.
+ *
+ * Uma espera é um CompletableFuture e não ocupa nenhuma thread enquanto está registada. Os futures são
+ * completados fora do lock, no fim de cada lote do anel (ou no fim da chamada que os completou), pelo que
+ * as continuações de quem espera não correm com o lock adquirido. Se o future for completado por fora
+ * (timeout, cancelamento), a espera sai dos índices.
+ */
 public class NotificationManager {
     private final ReentrantLock lock = new ReentrantLock();
-    private int dayGeneration = 0;
+    private final DayManager dayManager;
+    private final ProductDictionary dictionary;
+    // Nº de itens do anel já aplicados (eventos e fechos de dia)
+    private long processed = 0;
+    // Ativações das esperas pedidas em posições do anel ainda não alcançadas, por posição
+    private final TreeMap<Long, List<Runnable>> pending = new TreeMap<>();
 
-    private final Set<String> seenProducts = new HashSet<>();
-    private String lastProduct = null;
+    private final BitSet seenProducts = new BitSet();
+    // Ids provisórios dos produtos pedidos nas esperas que o dicionário ainda não conhece, por nome
+    private final Map<String, Integer> provisional = new HashMap<>();
+    private int nextProvisional = -1;
+    private int lastProduct = -1;
     private int streak = 0;
 
+    // indexedBy de uma espera fora do índice (os ids provisórios são negativos)
+    private static final int NOT_INDEXED = Integer.MIN_VALUE;
+
     private static final class SimWaiter {
-        final String p1;
-        final String p2;
-        final Condition cond;
-        boolean done = false;
-        boolean result = false;
+        final String product1;
+        final String product2;
+        // Ids dos produtos, atribuídos na ativação; negativo = provisório
+        int p1;
+        int p2;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        boolean finished = false;    // completa, terminada pelo fecho do dia ou cancelada por quem esperava
+        int indexedBy = NOT_INDEXED;   // produto em simByProduct
 
-        SimWaiter(String p1, String p2, Condition cond) {
-            this.p1 = p1;
-            this.p2 = p2;
-            this.cond = cond;
+        SimWaiter(String product1, String product2) {
+            this.product1 = product1;
+            this.product2 = product2;
         }
     }
 
     private static final class ConsWaiter {
         final int n;
-        final Condition cond;
-        boolean done = false;
-        String productResult = null;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        boolean finished = false;
 
-        String baselineLastProduct;
-        int baselineStreak;
+        // Onde está indexada (consInRun ou consByN) e com que chave; index = null se fora do índice
+        TreeMap<Integer, List<ConsWaiter>> index = null;
+        int key;
 
-        ConsWaiter(int n, Condition cond, String baselineLastProduct, int baselineStreak) {
+        ConsWaiter(int n) {
             this.n = n;
-            this.cond = cond;
-            this.baselineLastProduct = baselineLastProduct;
-            this.baselineStreak = baselineStreak;
         }
     }
 
-    private final List<SimWaiter> simWaiters = new ArrayList<>();
-    private final List<ConsWaiter> consWaiters = new ArrayList<>();
+    private final Map<Integer, List<SimWaiter>> simByProduct = new HashMap<>();
+    // Completam quando a sequência atual chegar a streak = chave
+    private final TreeMap<Integer, List<ConsWaiter>> consInRun = new TreeMap<>();
+    // Completam quando uma sequência (a atual, se começou depois de se registarem) chegar a n = chave
+    private final TreeMap<Integer, List<ConsWaiter>> consByN = new TreeMap<>();
+    // Futures a completar quando o lock for libertado
+    private List<Runnable> completions = new ArrayList<>();
 
     public NotificationManager(DayManager dayManager) {
+        this.dayManager = dayManager;
+        this.dictionary = dayManager != null ? dayManager.getDictionary() : new ProductDictionary();
         if (dayManager != null) {
-            dayManager.addEventListener(this::onEvent);
+            processed = dayManager.getRingPosition();
+            dayManager.addEventListener(new DayManager.EventListener() {
+                @Override
+                public void beginBatch(long position) {
+                    lock.lock();
+                    processed = position;
+                }
+
+                @Override
+                public void onEvent(Event e) {
+                    NotificationManager.this.onEvent(e);
+                }
+
+                @Override
+                public void onDayClosed(int dayIndex, EventColumns events) {
+                    signalDayAdvanced();
+                }
+
+                @Override
+                public void endBatch() {
+                    lock.unlock();
+                    runCompletions();
+                }
+            });
         }
     }
 
+    // Posição do anel a partir da qual conta uma espera pedida agora. Chamado com lock adquirido: a thread
+    // do anel não avança, por isso o resultado é sempre >= processed
+    private long position() {
+        return dayManager != null ? dayManager.getRingPosition() : processed;
+    }
+
+    private void whenReached(long position, Runnable activation) {
+        if (position <= processed) activation.run();
+        else pending.computeIfAbsent(position, k -> new ArrayList<>()).add(activation);
+    }
+
+    // Chamado com lock adquirido, antes de aplicar o item na posição processed
+    private void activatePending() {
+        while (!pending.isEmpty() && pending.firstKey() <= processed) {
+            for (Runnable activation : pending.pollFirstEntry().getValue()) activation.run();
+        }
+    }
+
+    private void complete(SimWaiter w, boolean result) {
+        w.finished = true;
+        completions.add(() -> w.future.complete(result));
+    }
+
+    private void complete(ConsWaiter w, String product) {
+        w.finished = true;
+        completions.add(() -> w.future.complete(product));
+    }
+
+    // Chamado sem lock. Dentro de um lote do anel (lock ainda adquirido por esta thread) fica para o endBatch
+    private void runCompletions() {
+        if (lock.isHeldByCurrentThread()) return;
+        List<Runnable> ready;
+        lock.lock();
+        try {
+            if (completions.isEmpty()) return;
+            ready = completions;
+            completions = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable r : ready) r.run();
+    }
+
+    /** Aplica um evento do dia aberto (chamado pela thread do anel, ou diretamente sem DayManager). */
     public void onEvent(Event e) {
+        int prod = e.getProductId() >= 0 ? e.getProductId() : dictionary.intern(e.getProductName());
         lock.lock();
         try {
-            String prod = e.getProductName();
-            boolean wasNew = seenProducts.add(prod);
+            activatePending();
+            processed++;
+            if (!seenProducts.get(prod)) {
+                seenProducts.set(prod);
+                List<SimWaiter> waiting = simByProduct.remove(prod);
+                if (!provisional.isEmpty()) {
+                    // Primeiro evento de um produto que as esperas conheciam por um id provisório
+                    Integer old = provisional.remove(dictionary.name(prod));
+                    List<SimWaiter> byOld = old != null ? simByProduct.remove(old) : null;
+                    if (byOld != null) {
+                        if (waiting == null) waiting = byOld;
+                        else waiting.addAll(byOld);
+                    }
+                }
+                if (waiting != null) {
+                    for (SimWaiter w : waiting) {
+                        resolve(w);
+                        int other = w.p1 == prod ? w.p2 : w.p1;
+                        if (seen(other)) {
+                            w.indexedBy = NOT_INDEXED;
+                            complete(w, true);
+                        } else {
+                            indexSim(w, other);
+                        }
+                    }
+                }
+            }
 
-            if (prod.equals(lastProduct)) {
+            if (prod == lastProduct) {
                 streak++;
             } else {
                 lastProduct = prod;
                 streak = 1;
+                // Nova sequência: as esperas da anterior precisam agora de n eventos seguidos desde o início
+                while (!consInRun.isEmpty()) {
+                    for (ConsWaiter w : consInRun.pollFirstEntry().getValue()) indexCons(w, consByN, w.n);
+                }
             }
+            completeCons(consInRun);
+            completeCons(consByN);
+        } finally {
+            lock.unlock();
+        }
+        runCompletions();
+    }
 
-            if (wasNew) {
-                for (SimWaiter w : simWaiters) {
-                    if (!w.done && seenProducts.contains(w.p1) && seenProducts.contains(w.p2)) {
-                        w.result = true;
-                        w.done = true;
-                        w.cond.signalAll(); // Usar signalAll por segurança em SD
-                    }
-                }
+    // Chamado com lock adquirido: completa as esperas com chave <= streak
+    private void completeCons(TreeMap<Integer, List<ConsWaiter>> index) {
+        while (!index.isEmpty() && index.firstKey() <= streak) {
+            String product = dictionary.name(lastProduct);
+            for (ConsWaiter w : index.pollFirstEntry().getValue()) {
+                w.index = null;
+                complete(w, product);
             }
+        }
+    }
 
-            for (ConsWaiter w : consWaiters) {
-                if (w.done) continue;
+    // Chamado com lock adquirido, na posição do anel em que a espera foi pedida
+    private void activateSim(SimWaiter w) {
+        if (w.finished) return;
+        w.p1 = idOf(w.product1);
+        w.p2 = idOf(w.product2);
+        if (seen(w.p1) && seen(w.p2)) {
+            complete(w, true);
+            return;
+        }
+        indexSim(w, seen(w.p1) ? w.p2 : w.p1);
+    }
 
-                int effectiveStreak;
-                if (lastProduct != null && lastProduct.equals(w.baselineLastProduct)) {
-                    effectiveStreak = streak - w.baselineStreak;
-                } else {
-                    effectiveStreak = streak;
-                }
+    // Chamado com lock adquirido: o id do dicionário ou, se ainda não existir, o provisório. Se o nome for
+    // internado depois disto, o seu evento ainda não foi aplicado e onEvent encontra-o em provisional
+    private int idOf(String product) {
+        int id = dictionary.idOf(product);
+        if (id >= 0) return id;
+        Integer old = provisional.get(product);
+        if (old != null) return old;
+        int p = nextProvisional--;
+        provisional.put(product, p);
+        return p;
+    }
 
-                if (effectiveStreak >= w.n) {
-                    w.productResult = lastProduct;
-                    w.done = true;
-                    w.cond.signalAll();
-                }
-            }
+    // Chamado com lock adquirido: troca os ids provisórios dos produtos que o dicionário entretanto conheceu
+    private void resolve(SimWaiter w) {
+        if (w.p1 < 0) w.p1 = idOf(w.product1);
+        if (w.p2 < 0) w.p2 = idOf(w.product2);
+    }
+
+    private boolean seen(int product) {
+        return product >= 0 && seenProducts.get(product);
+    }
+
+    private void indexSim(SimWaiter w, int product) {
+        w.indexedBy = product;
+        simByProduct.computeIfAbsent(product, k -> new ArrayList<>()).add(w);
+    }
+
+    private void unindexSim(SimWaiter w) {
+        if (w.indexedBy == NOT_INDEXED) return;
+        List<SimWaiter> list = simByProduct.get(w.indexedBy);
+        if (list != null) {
+            list.remove(w);
+            if (list.isEmpty()) simByProduct.remove(w.indexedBy);
+        }
+        w.indexedBy = NOT_INDEXED;
+    }
+
+    private static void indexCons(ConsWaiter w, TreeMap<Integer, List<ConsWaiter>> index, int key) {
+        w.index = index;
+        w.key = key;
+        index.computeIfAbsent(key, k -> new ArrayList<>()).add(w);
+    }
+
+    private static void unindexCons(ConsWaiter w) {
+        if (w.index == null) return;
+        List<ConsWaiter> list = w.index.get(w.key);
+        if (list != null) {
+            list.remove(w);
+            if (list.isEmpty()) w.index.remove(w.key);
+        }
+        w.index = null;
+    }
+
+    /**
+     * Espera que os dois produtos sejam vendidos no dia aberto (a contar de agora). O future completa com true
+     * quando o par se completa, ou com false se o dia fechar antes; não ocupa nenhuma thread até lá.
+     * Completar o future por fora (orTimeout, cancel) retira a espera.
+     */
+    public CompletableFuture<Boolean> waitSimultaneous(String product1, String product2) {
+        SimWaiter waiter = new SimWaiter(product1, product2);
+        lock.lock();
+        try {
+            whenReached(position(), () -> activateSim(waiter));
         } finally {
             lock.unlock();
         }
+        runCompletions();
+        waiter.future.whenComplete((r, t) -> {
+            if (t != null) cancel(waiter);
+        });
+        return waiter.future;
     }
 
-    public boolean waitSimultaneous(String product1, String product2) throws InterruptedException {
+    /**
+     * Espera por n vendas seguidas do mesmo produto no dia aberto (a contar de agora). O future completa com
+     * o produto, ou com null se o dia fechar antes; completá-lo por fora retira a espera.
+     */
+    public CompletableFuture<String> waitConsecutive(int n) {
+        if (n <= 0) throw new IllegalArgumentException("n must be >= 1");
+        ConsWaiter waiter = new ConsWaiter(n);
         lock.lock();
         try {
-            if (seenProducts.contains(product1) && seenProducts.contains(product2)) return true;
-
-            Condition cond = lock.newCondition();
-            SimWaiter waiter = new SimWaiter(product1, product2, cond);
-            simWaiters.add(waiter);
+            whenReached(position(), () -> {
+                // Conta só os eventos a partir daqui: na sequência atual, completa em streak + n (sem overflow)
+                int key = n > Integer.MAX_VALUE - streak ? Integer.MAX_VALUE : streak + n;
+                if (!waiter.finished) indexCons(waiter, consInRun, key);
+            });
+        } finally {
+            lock.unlock();
+        }
+        waiter.future.whenComplete((r, t) -> {
+            if (t != null) cancel(waiter);
+        });
+        return waiter.future;
+    }
 
-            int myGen = dayGeneration;
-            try {
-                // Loop de espera para evitar despertares espúrios
-                while (!waiter.done && myGen == dayGeneration) {
-                    cond.await();
-                }
-            } finally {
-                simWaiters.remove(waiter);
-            }
-            return waiter.done && waiter.result;
+    private void cancel(SimWaiter w) {
+        lock.lock();
+        try {
+            w.finished = true;
+            unindexSim(w);
         } finally {
             lock.unlock();
         }
     }
 
-    public String waitConsecutive(int n) throws InterruptedException {
-        if (n <= 0) throw new IllegalArgumentException("n must be >= 1");
+    private void cancel(ConsWaiter w) {
         lock.lock();
         try {
-            Condition cond = lock.newCondition();
-            ConsWaiter waiter = new ConsWaiter(n, cond, lastProduct, streak);
-            consWaiters.add(waiter);
-
-            int myGen = dayGeneration;
-            try {
-                while (!waiter.done && myGen == dayGeneration) {
-                    cond.await();
-                }
-            } finally {
-                consWaiters.remove(waiter);
-            }
-            return waiter.done ? waiter.productResult : null;
+            w.finished = true;
+            unindexCons(w);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Fim do dia: termina as esperas pedidas até aqui e recomeça o estado. Chamado pela thread do anel quando
+     * chega o fecho do dia (ou diretamente sem DayManager).
+     */
     public void signalDayAdvanced() {
         lock.lock();
         try {
-            dayGeneration++;
-            for (SimWaiter w : simWaiters) {
-                w.cond.signalAll();
-            }
-            for (ConsWaiter w : consWaiters) {
-                w.cond.signalAll();
+            activatePending();
+            processed++;
+            for (List<SimWaiter> list : simByProduct.values()) {
+                for (SimWaiter w : list) {
+                    w.indexedBy = NOT_INDEXED;
+                    complete(w, false);
+                }
             }
+            simByProduct.clear();
+            endAll(consInRun);
+            endAll(consByN);
             seenProducts.clear();
-            lastProduct = null;
+            // Nenhuma espera indexada usa já os ids provisórios; as pendentes só os recebem ao ativar
+            provisional.clear();
+            nextProvisional = -1;
+            lastProduct = -1;
             streak = 0;
         } finally {
             lock.unlock();
         }
+        runCompletions();
+    }
+
+    private void endAll(TreeMap<Integer, List<ConsWaiter>> index) {
+        for (List<ConsWaiter> list : index.values()) {
+            for (ConsWaiter w : list) {
+                w.index = null;
+                complete(w, null);
+            }
+        }
+        index.clear();
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,76 @@
 package server;
 
+import common.IOUtils;
 import server.model.Event;
+import server.model.PerDayAgg;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ Formato dos ficheiros day-N.bin:
+   - antigo:  count:int, seguido de count x Event.writeTo (nome do produto repetido em cada evento)
+   - fixo:    DAY_MAGIC:int, versão:int, dicionário de produtos (IOUtils.writeStringList), count:int,
+              seguido de count registos de RECORD_BYTES: productId:int, quantity:int, price:double, timestamp:long
+   - indexado (versão 3): igual ao fixo, mas com os registos agrupados por productId (mantendo a ordem de
+              chegada dentro de cada produto) e, no fim, um índice com (offset:long, count:int) por productId
+              seguido de indexOffset:long
+ O magic é negativo, pelo que nunca se confunde com o count do formato antigo. Todos continuam legíveis;
+ os dias novos são gravados no formato indexado e lidos por mmap (ver scanDay e scanDayProducts).
+ Os dias a gravar chegam como EventColumns e são escritos diretamente das colunas, sem criar Event.
+
+ Os dias entregues a persistDayAsync são gravados por uma thread própria, em grupo (todos os dias em fila
+ numa só passagem, com fsync de cada ficheiro e um fsync da diretoria). Até o ficheiro estar no destino
+ o dia é servido a partir da memória por dayExists, scanDay, scanDayProducts e readSummary.
+ */
 public class PersistenceManager {
+    static final int DAY_MAGIC = 0xDA7A5D00;
+    static final int FORMAT_FIXED = 2;
+    static final int FORMAT_INDEXED = 3;
+    static final int RECORD_BYTES = 4 + 4 + 8 + 8;
+
+    private static final long WRITE_RETRY_MILLIS = 1000;
+
     private final File baseDir;
 
+    // Dias fechados à espera da thread de escrita; continuam legíveis a partir daqui
+    private final Map<Integer, EventColumns> pendingDays = new ConcurrentHashMap<>();
+
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final Condition hasWork = writerLock.newCondition();
+    private final ArrayDeque<PendingDay> writeQueue = new ArrayDeque<>();
+    private Thread writer = null;
+    private boolean closed = false;
+
+    private static final class PendingDay {
+        final int dayIndex;
+        final EventColumns events;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        PendingDay(int dayIndex, EventColumns events) {
+            this.dayIndex = dayIndex;
+            this.events = events;
+        }
+    }
+
     public PersistenceManager() {
         this("data");
     }
@@ -24,18 +86,250 @@ public class PersistenceManager {
         return new File(baseDir, "day-" + dayIndex + ".bin");
     }
 
+    private File summaryFile(int dayIndex) {
+        return new File(baseDir, "day-" + dayIndex + ".sum");
+    }
+
+    /**
+     * Grava já (na thread do caller) os eventos do dia no formato indexado e o resumo por produto (day-N.sum).
+     */
     public void persistDay(int dayIndex, List<Event> events) throws IOException {
+        persistDay(dayIndex, EventColumns.of(events));
+    }
+
+    public void persistDay(int dayIndex, EventColumns events) throws IOException {
+        commitAll(writeDayFiles(dayIndex, events));
+    }
+
+    /**
+     * Entrega o dia à thread de escrita e retorna logo. O future completa quando os ficheiros estiverem
+     * gravados (com fsync); até lá o dia é lido da memória.
+     */
+    public CompletableFuture<Void> persistDayAsync(int dayIndex, EventColumns events) {
+        PendingDay p = new PendingDay(dayIndex, events);
+        writerLock.lock();
+        try {
+            if (closed) throw new IllegalStateException("PersistenceManager closed");
+            pendingDays.put(dayIndex, events);
+            writeQueue.add(p);
+            if (writer == null) {
+                writer = new Thread(this::writerLoop, "day-writer");
+                writer.start();
+            }
+            hasWork.signal();
+        } finally {
+            writerLock.unlock();
+        }
+        return p.committed;
+    }
+
+    private void writerLoop() {
+        while (true) {
+            List<PendingDay> group;
+            writerLock.lock();
+            try {
+                while (writeQueue.isEmpty() && !closed) hasWork.awaitUninterruptibly();
+                if (writeQueue.isEmpty()) return;
+                group = new ArrayList<>(writeQueue);
+                writeQueue.clear();
+            } finally {
+                writerLock.unlock();
+            }
+
+            try {
+                writeGroup(group);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not persist days, will retry: " + e.getMessage());
+                if (!retryLater(group)) return;
+            }
+        }
+    }
+
+    // Grava todos os dias do grupo em tmp (com fsync) e só depois os move para o destino
+    private void writeGroup(List<PendingDay> group) throws IOException {
+        List<File[]> files = new ArrayList<>();
+        for (PendingDay p : group) files.addAll(writeDayFiles(p.dayIndex, p.events));
+        commitAll(files);
+        for (PendingDay p : group) {
+            pendingDays.remove(p.dayIndex, p.events);
+            p.committed.complete(null);
+        }
+    }
+
+    // Volta a pôr o grupo à frente da fila e espera antes de tentar de novo. Retorna false se já fechou.
+    private boolean retryLater(List<PendingDay> group) {
+        writerLock.lock();
+        try {
+            for (int i = group.size() - 1; i >= 0; i--) writeQueue.addFirst(group.get(i));
+            if (closed) {
+                for (PendingDay p : writeQueue) {
+                    System.err.println("Day " + p.dayIndex + " was not persisted");
+                    p.committed.completeExceptionally(new IOException("Day " + p.dayIndex + " was not persisted"));
+                }
+                return false;
+            }
+            hasWork.await(WRITE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Espera que a thread de escrita grave os dias em fila e termina-a (tenta mais uma vez em caso de erro).
+     * Chamado no fim do servidor.
+     */
+    public void close() {
+        Thread w;
+        writerLock.lock();
+        try {
+            closed = true;
+            hasWork.signalAll();
+            w = writer;
+        } finally {
+            writerLock.unlock();
+        }
+        if (w == null) return;
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Escreve day-N.bin.tmp e day-N.sum.tmp (com fsync). Retorna os pares {tmp, destino} por ordem de commit.
+    private List<File[]> writeDayFiles(int dayIndex, EventColumns events) throws IOException {
         File target = dayFile(dayIndex);
         File tmp = new File(baseDir, "day-" + dayIndex + ".bin.tmp");
+        int n = events.size();
+
+        // Os productIds são lidos uma vez, por ordem; as outras colunas só na escrita dos registos
+        int[] pids = new int[n];
+        events.scan(new RecordVisitor() {
+            private int i;
+
+            @Override
+            public void dictionary(String[] products) {
+            }
+
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) {
+                pids[i++] = productId;
+            }
+        });
 
-        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
-            out.writeInt(events.size());
-            for (Event e : events) {
-                e.writeTo(out);
+        // O ficheiro tem um dicionário próprio, só com os produtos do dia, por ordem de aparecimento
+        String[] names = events.getDictionary().names();
+        int[] localOf = new int[names.length];
+        Arrays.fill(localOf, -1);
+        List<String> dict = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int pid = pids[i];
+            if (localOf[pid] < 0) {
+                localOf[pid] = dict.size();
+                dict.add(names[pid]);
             }
+        }
+
+        // Ordenação estável por produto (counting sort): order[k] é o índice do k-ésimo evento a gravar
+        int[] counts = new int[dict.size()];
+        for (int i = 0; i < n; i++) counts[localOf[pids[i]]]++;
+        int[] starts = new int[dict.size()];
+        for (int id = 1; id < starts.length; id++) starts[id] = starts[id - 1] + counts[id - 1];
+        int[] next = starts.clone();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[next[localOf[pids[i]]]++] = i;
+
+        PerDayAgg[] aggs = new PerDayAgg[dict.size()];
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+            out.writeInt(DAY_MAGIC);
+            out.writeInt(FORMAT_INDEXED);
+            IOUtils.writeStringList(out, dict);
+            out.writeInt(n);
+            long recordsOffset = out.size();
+            // Os índices de cada produto são crescentes: o cursor só muda de parte para a frente
+            EventColumns.Cursor cursor = events.cursor();
+            for (int i : order) {
+                cursor.seek(i);
+                int id = localOf[pids[i]];
+                int quantity = cursor.quantity();
+                double price = cursor.price();
+                out.writeInt(id);
+                out.writeInt(quantity);
+                out.writeDouble(price);
+                out.writeLong(cursor.timestamp());
+                if (aggs[id] == null) aggs[id] = new PerDayAgg();
+                aggs[id].incorporate(quantity, price);
+            }
+            long indexOffset = recordsOffset + (long) n * RECORD_BYTES;
+            for (int id = 0; id < dict.size(); id++) {
+                out.writeLong(recordsOffset + (long) starts[id] * RECORD_BYTES);
+                out.writeInt(counts[id]);
+            }
+            out.writeLong(indexOffset);
             out.flush();
+            fos.getFD().sync();
         }
 
+        Map<String, PerDayAgg> summary = new HashMap<>(Math.max(16, dict.size() * 2));
+        for (int i = 0; i < aggs.length; i++) summary.put(dict.get(i), aggs[i]);
+        File sumTmp = writeSummaryTmp(dayIndex, summary, true);
+
+        List<File[]> files = new ArrayList<>();
+        files.add(new File[]{tmp, target});
+        files.add(new File[]{sumTmp, summaryFile(dayIndex)});
+        return files;
+    }
+
+    /**
+     * Resumo do dia: count:int seguido de (produto:string, PerDayAgg) por produto.
+     */
+    public void persistSummary(int dayIndex, Map<String, PerDayAgg> summary) throws IOException {
+        commit(writeSummaryTmp(dayIndex, summary, false), summaryFile(dayIndex));
+    }
+
+    private File writeSummaryTmp(int dayIndex, Map<String, PerDayAgg> summary, boolean sync) throws IOException {
+        File tmp = new File(baseDir, "day-" + dayIndex + ".sum.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(summary.size());
+            for (Map.Entry<String, PerDayAgg> entry : summary.entrySet()) {
+                IOUtils.writeString(out, entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            out.flush();
+            if (sync) fos.getFD().sync();
+        }
+        return tmp;
+    }
+
+    public Map<String, PerDayAgg> readSummary(int dayIndex) throws IOException {
+        EventColumns pending = pendingDays.get(dayIndex);
+        if (pending != null) return pending.summarize();
+        File f = summaryFile(dayIndex);
+        if (!f.exists()) throw new FileNotFoundException("Day summary not found: " + f.getAbsolutePath());
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int count = in.readInt();
+            Map<String, PerDayAgg> summary = new HashMap<>(Math.max(16, count * 2));
+            for (int i = 0; i < count; i++) {
+                String product = IOUtils.readString(in);
+                summary.put(product, PerDayAgg.readFrom(in));
+            }
+            return summary;
+        }
+    }
+
+    public boolean summaryExists(int dayIndex) {
+        return pendingDays.containsKey(dayIndex) || summaryFile(dayIndex).exists();
+    }
+
+    // Move tmp para target; se o rename falhar (ex.: destino existente em Windows) copia o conteúdo
+    private void commit(File tmp, File target) throws IOException {
         if (!tmp.renameTo(target)) {
             try (InputStream in = new BufferedInputStream(new FileInputStream(tmp));
                  OutputStream os = new BufferedOutputStream(new FileOutputStream(target))) {
@@ -51,18 +345,21 @@ public class PersistenceManager {
         }
     }
 
-    public List<Event> readDay(int dayIndex) throws IOException {
-        File f = dayFile(dayIndex);
-        if (!f.exists()) throw new FileNotFoundException("Day file not found: " + f.getAbsolutePath());
+    private void commitAll(List<File[]> files) throws IOException {
+        for (File[] f : files) commit(f[0], f[1]);
+        syncDirectory();
+    }
 
+    // Torna os renames duráveis; nem todos os sistemas permitem abrir uma diretoria (ex.: Windows)
+    private void syncDirectory() {
+        try (FileChannel ch = FileChannel.open(baseDir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    public List<Event> readDay(int dayIndex) throws IOException {
         List<Event> result = new ArrayList<>();
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
-            int count = in.readInt();
-            for (int i = 0; i < count; i++) {
-                Event e = Event.readFrom(in);
-                result.add(e);
-            }
-        }
+        streamDay(dayIndex, result::add);
         return result;
     }
 
@@ -70,30 +367,221 @@ public class PersistenceManager {
         void handle(Event e) throws IOException;
     }
 
+    /**
+     * Visita os registos de um dia sem criar Event nem String por registo.
+     * dictionary é chamado uma vez, antes dos registos, com os nomes indexados por productId.
+     */
+    public interface RecordVisitor {
+        void dictionary(String[] products) throws IOException;
+
+        void record(int productId, int quantity, double price, long timestamp) throws IOException;
+    }
+
     public void streamDay(int dayIndex, EventHandler handler) throws IOException {
+        scanDay(dayIndex, new RecordVisitor() {
+            private String[] products;
+
+            @Override
+            public void dictionary(String[] products) {
+                this.products = products;
+            }
+
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) throws IOException {
+                handler.handle(new Event(products[productId], quantity, price, timestamp));
+            }
+        });
+    }
+
+    /**
+     * Percorre os registos do dia. No formato fixo o ficheiro é mapeado em memória e lido sem cópias;
+     * no formato antigo os eventos são primeiro descodificados para construir o dicionário.
+     */
+    public void scanDay(int dayIndex, RecordVisitor visitor) throws IOException {
+        EventColumns pending = pendingDays.get(dayIndex);
+        if (pending != null) {
+            pending.scan(visitor);
+            return;
+        }
+        File f = dayFile(dayIndex);
+        if (!f.exists()) throw new FileNotFoundException("Day file not found: " + f.getAbsolutePath());
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = mapDay(ch, f);
+            if (buf == null) {
+                scanLegacy(f, visitor);
+                return;
+            }
+            String[] products = readDictionary(buf);
+            int count = buf.getInt();
+            if ((long) count * RECORD_BYTES > buf.remaining()) throw new IOException("Truncated day file: " + f);
+            visitor.dictionary(products);
+            visitRecords(buf, buf.position(), count, visitor);
+        }
+    }
+
+    /**
+     * Como scanDay, mas só visita os registos dos produtos indicados. Nos ficheiros indexados lê apenas as
+     * zonas desses produtos (via índice no fim do ficheiro); nos outros formatos filtra durante a leitura.
+     */
+    public void scanDayProducts(int dayIndex, Collection<String> wanted, RecordVisitor visitor) throws IOException {
+        EventColumns pending = pendingDays.get(dayIndex);
+        if (pending != null) {
+            pending.scanProducts(wanted, visitor);
+            return;
+        }
         File f = dayFile(dayIndex);
         if (!f.exists()) throw new FileNotFoundException("Day file not found: " + f.getAbsolutePath());
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = mapDay(ch, f);
+            if (buf == null) {
+                scanLegacy(f, filtered(wanted, visitor));
+                return;
+            }
+            int version = buf.getInt(4);
+            String[] products = readDictionary(buf);
+            int count = buf.getInt();
+            if ((long) count * RECORD_BYTES > buf.remaining()) throw new IOException("Truncated day file: " + f);
+            if (version != FORMAT_INDEXED) {
+                RecordVisitor v = filtered(wanted, visitor);
+                v.dictionary(products);
+                visitRecords(buf, buf.position(), count, v);
+                return;
+            }
+
+            visitor.dictionary(products);
+            int indexOffset = (int) buf.getLong(buf.limit() - 8);
+            Set<String> wantedSet = new HashSet<>(wanted);
+            for (int id = 0; id < products.length; id++) {
+                if (!wantedSet.contains(products[id])) continue;
+                int entry = indexOffset + id * 12;
+                visitRecords(buf, (int) buf.getLong(entry), buf.getInt(entry + 8), visitor);
+            }
+        }
+    }
+
+    // Mapeia o ficheiro e deixa a posição logo a seguir ao cabeçalho (magic + versão); null se o cabeçalho
+    // não tiver o magic, isto é, se o ficheiro estiver no formato antigo
+    private static MappedByteBuffer mapDay(FileChannel ch, File f) throws IOException {
+        long size = ch.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Day file too large to map: " + f.getAbsolutePath());
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (size < 8 || buf.getInt(0) != DAY_MAGIC) return null;
+        int version = buf.getInt(4);
+        if (version != FORMAT_FIXED && version != FORMAT_INDEXED) {
+            throw new IOException("Unsupported day file version: " + version);
+        }
+        buf.position(8);
+        return buf;
+    }
+
+    private static void visitRecords(ByteBuffer buf, int pos, int count, RecordVisitor visitor) throws IOException {
+        for (int i = 0; i < count; i++, pos += RECORD_BYTES) {
+            visitor.record(buf.getInt(pos), buf.getInt(pos + 4), buf.getDouble(pos + 8), buf.getLong(pos + 16));
+        }
+    }
 
+    // Visitor que só deixa passar os registos dos produtos pedidos
+    private static RecordVisitor filtered(Collection<String> wanted, RecordVisitor visitor) {
+        Set<String> wantedSet = new HashSet<>(wanted);
+        return new RecordVisitor() {
+            private boolean[] keep;
+
+            @Override
+            public void dictionary(String[] products) throws IOException {
+                keep = new boolean[products.length];
+                for (int i = 0; i < products.length; i++) keep[i] = wantedSet.contains(products[i]);
+                visitor.dictionary(products);
+            }
+
+            @Override
+            public void record(int productId, int quantity, double price, long timestamp) throws IOException {
+                if (keep[productId]) visitor.record(productId, quantity, price, timestamp);
+            }
+        };
+    }
+
+    private static String[] readDictionary(ByteBuffer buf) {
+        int n = buf.getInt();
+        String[] products = new String[n];
+        for (int i = 0; i < n; i++) {
+            int len = buf.getInt();
+            if (len < 0) continue;
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            products[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return products;
+    }
+
+    private void scanLegacy(File f, RecordVisitor visitor) throws IOException {
+        List<Event> events = new ArrayList<>();
         try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
             int count = in.readInt();
             for (int i = 0; i < count; i++) {
-                Event e = Event.readFrom(in);
-                handler.handle(e);
+                events.add(Event.readFrom(in));
+            }
+        }
+        visitEvents(events, visitor);
+    }
+
+    // Visita eventos em memória, construindo o dicionário pela ordem de aparecimento
+    private static void visitEvents(List<Event> events, RecordVisitor visitor) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dict = new ArrayList<>();
+        int[] productIds = new int[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            String name = events.get(i).getProductName();
+            Integer id = ids.putIfAbsent(name, dict.size());
+            if (id == null) {
+                id = dict.size();
+                dict.add(name);
             }
+            productIds[i] = id;
+        }
+        visitor.dictionary(dict.toArray(new String[0]));
+        for (int i = 0; i < events.size(); i++) {
+            Event e = events.get(i);
+            visitor.record(productIds[i], e.getQuantity(), e.getPrice(), e.getTimestamp());
+        }
+    }
+
+    public boolean isLegacyFormat(int dayIndex) throws IOException {
+        return formatVersion(dayIndex) == 1;
+    }
+
+    // 1 para o formato antigo; caso contrário a versão escrita a seguir ao magic
+    private int formatVersion(int dayIndex) throws IOException {
+        File f = dayFile(dayIndex);
+        if (!f.exists()) throw new FileNotFoundException("Day file not found: " + f.getAbsolutePath());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (f.length() < 8 || in.readInt() != DAY_MAGIC) return 1;
+            return in.readInt();
         }
     }
 
+    /**
+     * Regrava um dia de um formato anterior no formato indexado (e o seu resumo).
+     * Retorna false se já estava no formato atual.
+     */
+    public boolean convertDay(int dayIndex) throws IOException {
+        if (pendingDays.containsKey(dayIndex)) return false;
+        if (formatVersion(dayIndex) == FORMAT_INDEXED) return false;
+        persistDay(dayIndex, readDay(dayIndex));
+        return true;
+    }
+
     public boolean dayExists(int dayIndex) {
-        return dayFile(dayIndex).exists();
+        return pendingDays.containsKey(dayIndex) || dayFile(dayIndex).exists();
     }
 
     public boolean deleteDay(int dayIndex) {
+        summaryFile(dayIndex).delete();
         File f = dayFile(dayIndex);
         return f.exists() && f.delete();
     }
 
     public List<Integer> listPersistedDays() {
-        List<Integer> res = new ArrayList<>();
+        List<Integer> res = new ArrayList<>(pendingDays.keySet());
         File[] files = baseDir.listFiles();
         if (files == null) return res;
         for (File f : files) {
@@ -102,7 +590,7 @@ public class PersistenceManager {
                 try {
                     String num = name.substring(4, name.length() - 4);
                     int idx = Integer.parseInt(num);
-                    res.add(idx);
+                    if (!res.contains(idx)) res.add(idx);
                 } catch (NumberFormatException ignored) {}
             }
         }
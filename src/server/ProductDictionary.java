@@ -0,0 +1,156 @@
+package server;
+
+import common.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Nomes de produto internados em ids inteiros (0, 1, 2, ...), partilhado por todo o servidor: os eventos em
+ * memória, a janela de agregação e as notificações usam o id como chave, e o nome guardado aqui é a única
+ * instância de cada String. Um id nunca muda nem é reutilizado. Lookups sem locks; só a criação de um id
+ * novo adquire o lock.
+ *
+ * Com open(ficheiro) (data/products.dict) os ids mantêm-se entre arranques: cada nome novo é acrescentado
+ * ao fim do ficheiro (writeString), sem fsync. Os ficheiros dos dias guardam os nomes, não os ids, por isso
+ * perder o fim do dicionário num crash só muda os ids dos produtos que lá estavam.
+ */
+public class ProductDictionary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Publicado depois de o nome estar escrito; names[id] nunca muda
+    private volatile String[] names = new String[64];
+    private volatile int size = 0;
+    // null = só em memória
+    private FileChannel file = null;
+
+    /** Dicionário só em memória. */
+    public ProductDictionary() {}
+
+    /**
+     * Carrega o dicionário do ficheiro (se existir) e passa a acrescentar-lhe os nomes novos.
+     * Um nome final incompleto (escrita cortada por um crash) é descartado.
+     */
+    public static ProductDictionary open(File f) throws IOException {
+        ProductDictionary dict = new ProductDictionary();
+        long valid = 0;
+        if (f.exists()) {
+            long length = f.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                while (true) {
+                    byte[] bytes;
+                    try {
+                        int len = in.readInt();
+                        if (len < 0 || len > length - valid - 4) break;
+                        bytes = new byte[len];
+                        in.readFully(bytes);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    dict.add(new String(bytes, StandardCharsets.UTF_8));
+                    valid += 4 + bytes.length;
+                }
+            }
+        }
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (ch.size() > valid) ch.truncate(valid);
+        ch.position(valid);
+        dict.file = ch;
+        return dict;
+    }
+
+    /** Id do produto, criando-o (e gravando-o, se houver ficheiro) se ainda não existir. */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        lock.lock();
+        try {
+            id = ids.get(name);
+            if (id != null) return id;
+            if (file != null) append(name);
+            return add(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com lock adquirido (ou antes de o dicionário ser partilhado)
+    private int add(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) return existing;
+        int next = size;
+        String[] current = names;
+        if (next == current.length) current = Arrays.copyOf(current, next * 2);
+        current[next] = name;
+        names = current;
+        size = next + 1;
+        ids.put(name, next);
+        return next;
+    }
+
+    // Chamado com lock adquirido. Uma falha de escrita não impede o servidor de continuar: os ids
+    // continuam válidos em memória, só deixam de ser gravados
+    private void append(String name) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(4 + name.length());
+        try {
+            IOUtils.writeString(new DataOutputStream(bout), name);
+            ByteBuffer buf = ByteBuffer.wrap(bout.toByteArray());
+            while (buf.hasRemaining()) file.write(buf);
+        } catch (IOException e) {
+            System.err.println("Could not persist product dictionary: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /** Fecha o ficheiro; os nomes novos passam a ficar só em memória. */
+    public void close() {
+        lock.lock();
+        try {
+            closeFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFile() {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException ignored) {}
+        file = null;
+    }
+
+    /** Id do produto, ou -1 se nunca foi visto. */
+    public int idOf(String name) {
+        if (name == null) return -1;
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Cópia dos nomes indexada por id (tamanho = size() no momento da chamada). */
+    public String[] names() {
+        int n = size;
+        return Arrays.copyOf(names, n);
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camada partilhada de execução de pedidos.
+ * Cada pedido aceite conta para um limite global e para o limite da sua conexão (em fila + em execução).
+ * Quando algum dos limites é atingido o pedido é rejeitado e o caller responde com STATUS_RESOURCE_LIMIT,
+ * pelo que o número de threads/tarefas nunca cresce sem limite.
+ */
+public class RequestExecutor {
+    public enum Mode { VIRTUAL, FIXED }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final int globalLimit;
+    private final int perConnectionLimit;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    /** Contador de pedidos pendentes de uma conexão. */
+    public static final class ConnectionQueue {
+        private final AtomicInteger pending = new AtomicInteger();
+
+        public int depth() {
+            return pending.get();
+        }
+    }
+
+    public RequestExecutor(Mode mode, int workerThreads, int globalLimit, int perConnectionLimit) {
+        if (workerThreads <= 0) throw new IllegalArgumentException("workerThreads must be > 0");
+        if (globalLimit <= 0) throw new IllegalArgumentException("globalLimit must be > 0");
+        if (perConnectionLimit <= 0) throw new IllegalArgumentException("perConnectionLimit must be > 0");
+        this.mode = mode;
+        this.globalLimit = globalLimit;
+        this.perConnectionLimit = perConnectionLimit;
+
+        if (mode == Mode.VIRTUAL) {
+            // Uma virtual thread por pedido; o limite global garante que não existem mais do que globalLimit vivas
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("req-", 0).factory());
+        } else {
+            // Fila interna sem limite: o tamanho real é limitado por globalLimit antes de chegar aqui
+            AtomicInteger n = new AtomicInteger();
+            ThreadFactory tf = r -> {
+                Thread t = new Thread(r, "req-worker-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+            this.executor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), tf);
+        }
+    }
+
+    public ConnectionQueue newConnectionQueue() {
+        return new ConnectionQueue();
+    }
+
+    /**
+     * Submete um pedido. Retorna false (sem executar nada) se o limite global ou da conexão foi atingido.
+     */
+    public boolean submit(ConnectionQueue queue, Runnable task) {
+        if (queue.pending.incrementAndGet() > perConnectionLimit) {
+            queue.pending.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (pending.incrementAndGet() > globalLimit) {
+            pending.decrementAndGet();
+            queue.pending.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    queue.pending.decrementAndGet();
+                    pending.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            // RejectedExecutionException após shutdown
+            queue.pending.decrementAndGet();
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Executa a continuação de um pedido já aceite (a resposta de um WAIT_* que completou, p.ex.).
+     * Não conta para os limites: o pedido deixou de os ocupar quando ficou registado à espera.
+     */
+    public void resume(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            // RejectedExecutionException após shutdown: a resposta perde-se com o servidor
+            rejected.incrementAndGet();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Pedidos aceites que ainda não terminaram (em fila + em execução). */
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestExecutor{mode=" + mode + ", queueDepth=" + pending.get()
+                + ", rejected=" + rejected.get() + ", completed=" + completed.get() + "}";
+    }
+}
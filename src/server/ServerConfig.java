@@ -0,0 +1,101 @@
+package server;
+
+/**
+ * Configuração do servidor, lida de system properties (-Dsd.xxx=...) com valores por omissão.
+ */
+public final class ServerConfig {
+    public enum Transport { BLOCKING, NIO }
+
+    private final int port;
+    private final Transport transport;
+    private final int reactorThreads;
+    private final RequestExecutor.Mode executorMode;
+    private final int workerThreads;
+    private final int globalQueueLimit;
+    private final int connectionQueueLimit;
+    private final EventLog.Durability walDurability; // null = sem WAL
+    private final int walBatchEvents;
+    private final int walBatchMillis;
+
+    private ServerConfig(int port) {
+        this.port = port;
+        this.transport = Transport.valueOf(System.getProperty("sd.transport", "blocking").trim().toUpperCase());
+        this.reactorThreads = intProperty("sd.reactors", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.executorMode = RequestExecutor.Mode.valueOf(
+                System.getProperty("sd.executor", "virtual").trim().toUpperCase());
+        this.workerThreads = intProperty("sd.workers", Runtime.getRuntime().availableProcessors() * 4);
+        this.globalQueueLimit = intProperty("sd.queue.global", 10_000);
+        this.connectionQueueLimit = intProperty("sd.queue.connection", 256);
+        String wal = System.getProperty("sd.wal", "batch").trim().toUpperCase();
+        this.walDurability = wal.equals("OFF") ? null : EventLog.Durability.valueOf(wal);
+        this.walBatchEvents = intProperty("sd.wal.batch.events", 1000);
+        this.walBatchMillis = intProperty("sd.wal.batch.millis", 10);
+    }
+
+    public static ServerConfig fromSystemProperties(int defaultPort) {
+        return new ServerConfig(intProperty("sd.port", defaultPort));
+    }
+
+    static int intProperty(String name, int def) {
+        String v = System.getProperty(name);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + v);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public RequestExecutor.Mode getExecutorMode() {
+        return executorMode;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getGlobalQueueLimit() {
+        return globalQueueLimit;
+    }
+
+    public int getConnectionQueueLimit() {
+        return connectionQueueLimit;
+    }
+
+    public EventLog.Durability getWalDurability() {
+        return walDurability;
+    }
+
+    public int getWalBatchEvents() {
+        return walBatchEvents;
+    }
+
+    public int getWalBatchMillis() {
+        return walBatchMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "transport=" + transport.name().toLowerCase()
+                + (transport == Transport.NIO ? " (" + reactorThreads + " reactors)" : "")
+                + ", executor=" + executorMode.name().toLowerCase()
+                + (executorMode == RequestExecutor.Mode.FIXED ? " (" + workerThreads + " workers)" : "")
+                + ", queue.global=" + globalQueueLimit
+                + ", queue.connection=" + connectionQueueLimit
+                + ", wal=" + (walDurability == null ? "off" : walDurability.name().toLowerCase())
+                + (walDurability == EventLog.Durability.BATCH
+                        ? " (" + walBatchEvents + " events / " + walBatchMillis + " ms)" : "");
+    }
+}
@@ -0,0 +1,274 @@
+package server;
+
+import common.Message;
+import common.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Subscrições dos agregados de um produto (SUBSCRIBE_AGG). Em vez de o cliente repetir os AGG_*, o servidor
+ * envia frames SERVER_PUSH com o requestId da subscrição: uma logo a seguir a subscrever e outra sempre que
+ * os agregados mudam, isto é, quando um dia fechado entra na janela do AggregationManager.
+ *
+ * As subscrições com o mesmo produto e nº de dias partilham o cálculo: cada mudança calcula os valores uma
+ * vez por chave. Cada subscrição guarda só o último valor por enviar, pelo que um cliente lento recebe o mais
+ * recente e não uma fila de valores antigos; com um intervalo mínimo recebe no máximo um push por intervalo.
+ * Os envios são feitos pelos workers do RequestExecutor, nunca pela thread do anel.
+ */
+public class SubscriptionManager {
+    private final AggregationManager aggregationManager;
+    private final DayManager dayManager;
+    private final RequestExecutor executor;
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Key, List<Subscription>> byKey = new HashMap<>();
+    // Incrementado a cada mudança da janela: um cálculo mais antigo nunca substitui um mais recente
+    private final AtomicLong version = new AtomicLong();
+
+    private static final class Key {
+        final String product;
+        final int days;
+
+        Key(String product, int days) {
+            this.product = product;
+            this.days = days;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return days == k.days && product.equals(k.product);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(product, days);
+        }
+    }
+
+    /** Subscrição de uma conexão; o id é o requestId do SUBSCRIBE_AGG. */
+    public static final class Subscription {
+        private final int id;
+        private final Key key;
+        private final MessageSink sink;
+        private final long minIntervalNanos;
+        // Chamado quando um push falha e a subscrição termina por isso
+        private final Consumer<Subscription> onFailure;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] pending = null;    // último valor ainda por enviar
+        private long lastVersion = -1;
+        private boolean scheduled = false; // há uma entrega em fila, a correr ou marcada no timer
+        private boolean sentOnce = false;
+        private long lastSentNanos;
+        private boolean closed = false;
+
+        private Subscription(int id, Key key, MessageSink sink, long minIntervalNanos,
+                             Consumer<Subscription> onFailure) {
+            this.id = id;
+            this.key = key;
+            this.sink = sink;
+            this.minIntervalNanos = minIntervalNanos;
+            this.onFailure = onFailure;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        // Chamado com lock adquirido
+        private long nextSendDelay() {
+            if (!sentOnce || minIntervalNanos == 0) return 0;
+            return Math.max(0, lastSentNanos + minIntervalNanos - System.nanoTime());
+        }
+    }
+
+    private SubscriptionManager(AggregationManager aggregationManager, DayManager dayManager,
+                                RequestExecutor executor) {
+        this.aggregationManager = aggregationManager;
+        this.dayManager = dayManager;
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "agg-push-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Cria o gestor e só depois o regista na janela do AggregationManager, para refreshAll nunca correr
+     * sobre um objeto ainda em construção.
+     */
+    public static SubscriptionManager create(AggregationManager aggregationManager, DayManager dayManager,
+                                             RequestExecutor executor) {
+        SubscriptionManager sm = new SubscriptionManager(aggregationManager, dayManager, executor);
+        aggregationManager.addWindowListener(day -> {
+            long v = sm.version.incrementAndGet();
+            executor.resume(() -> sm.refreshAll(v));
+        });
+        return sm;
+    }
+
+    /**
+     * Regista uma subscrição. Não envia nada: quem subscreve responde ao pedido e depois chama pushCurrent.
+     * Se um push falhar (conexão fechada ou cliente lento demais) a subscrição é removida e onFailure é
+     * chamado com ela, numa thread do RequestExecutor.
+     */
+    public Subscription subscribe(MessageSink sink, int id, String product, int days, long minIntervalMillis,
+                                  Consumer<Subscription> onFailure) {
+        if (days <= 0) throw new IllegalArgumentException("days must be >= 1");
+        if (minIntervalMillis < 0) throw new IllegalArgumentException("minIntervalMillis must be >= 0");
+        Key key = new Key(product, days);
+        Subscription s = new Subscription(id, key, sink, TimeUnit.MILLISECONDS.toNanos(minIntervalMillis),
+                onFailure);
+        lock.lock();
+        try {
+            byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(s);
+        } finally {
+            lock.unlock();
+        }
+        return s;
+    }
+
+    /** Envia os valores atuais (o primeiro push de uma subscrição). */
+    public void pushCurrent(Subscription s) {
+        long v = version.get();
+        try {
+            offer(s, v, compute(s.key));
+        } catch (IOException e) {
+            System.err.println("Could not compute aggregates for " + s.key.product + ": " + e.getMessage());
+        }
+    }
+
+    public void unsubscribe(Subscription s) {
+        lock.lock();
+        try {
+            List<Subscription> list = byKey.get(s.key);
+            if (list != null) {
+                list.remove(s);
+                if (list.isEmpty()) byKey.remove(s.key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        s.lock.lock();
+        try {
+            s.closed = true;
+            s.pending = null;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private void refreshAll(long v) {
+        List<Map.Entry<Key, List<Subscription>>> entries = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Map.Entry<Key, List<Subscription>> e : byKey.entrySet()) {
+                entries.add(Map.entry(e.getKey(), new ArrayList<>(e.getValue())));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Key, List<Subscription>> e : entries) {
+            byte[] payload;
+            try {
+                payload = compute(e.getKey());
+            } catch (IOException ex) {
+                System.err.println("Could not compute aggregates for " + e.getKey().product + ": " + ex.getMessage());
+                continue;
+            }
+            for (Subscription s : e.getValue()) offer(s, v, payload);
+        }
+    }
+
+    // Payload do push: dia aberto, quantidade, volume, preço médio e preço máximo dos últimos days dias
+    private byte[] compute(Key key) throws IOException {
+        int day = dayManager.getDayIndex();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bout);
+        body.writeInt(day);
+        body.writeInt(aggregationManager.aggregateQuantity(key.product, key.days));
+        body.writeDouble(aggregationManager.aggregateVolume(key.product, key.days));
+        body.writeDouble(aggregationManager.aggregateAvgPrice(key.product, key.days));
+        body.writeDouble(aggregationManager.aggregateMaxPrice(key.product, key.days));
+        return bout.toByteArray();
+    }
+
+    private void offer(Subscription s, long v, byte[] payload) {
+        long delay;
+        s.lock.lock();
+        try {
+            if (s.closed || v < s.lastVersion) return;
+            s.lastVersion = v;
+            s.pending = payload;
+            // Uma entrega já em curso ou marcada leva este valor
+            if (s.scheduled) return;
+            s.scheduled = true;
+            delay = s.nextSendDelay();
+        } finally {
+            s.lock.unlock();
+        }
+        schedule(s, delay);
+    }
+
+    private void schedule(Subscription s, long delayNanos) {
+        if (delayNanos <= 0) executor.resume(() -> deliver(s));
+        else timer.schedule(() -> executor.resume(() -> deliver(s)), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void deliver(Subscription s) {
+        byte[] payload;
+        s.lock.lock();
+        try {
+            payload = s.pending;
+            s.pending = null;
+            if (payload == null || s.closed) {
+                s.scheduled = false;
+                return;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+
+        try {
+            s.sink.send(new Message(s.id, Protocol.SERVER_PUSH, payload));
+        } catch (IOException e) {
+            // Conexão fechada ou cliente lento demais: a subscrição termina com ela
+            unsubscribe(s);
+            s.onFailure.accept(s);
+            return;
+        }
+
+        long delay;
+        s.lock.lock();
+        try {
+            s.sentOnce = true;
+            s.lastSentNanos = System.nanoTime();
+            if (s.pending == null || s.closed) {
+                s.scheduled = false;
+                return;
+            }
+            delay = s.nextSendDelay();
+        } finally {
+            s.lock.unlock();
+        }
+        schedule(s, delay);
+    }
+}
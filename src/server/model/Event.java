@@ -8,18 +8,29 @@ import java.io.IOException;
 import java.util.Objects;
 
 public final class Event {
+    // Id no ProductDictionary do servidor, ou -1 se o evento não foi criado a partir dele
+    private final int productId;
     private final String productName;
     private final int quantity;
     private final double price;
     private final long timestamp;
 
     public Event(String productName, int quantity, double price, long timestamp) {
+        this(-1, productName, quantity, price, timestamp);
+    }
+
+    public Event(int productId, String productName, int quantity, double price, long timestamp) {
+        this.productId = productId;
         this.productName = productName;
         this.quantity = quantity;
         this.price = price;
         this.timestamp = timestamp;
     }
 
+    public int getProductId() {
+        return productId;
+    }
+
     public String getProductName() {
         return productName;
     }
@@ -0,0 +1,64 @@
+package server.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Agregados de um produto num dia: quantidade, volume (preço x quantidade), preço máximo e nº de eventos.
+ */
+public final class PerDayAgg {
+    private int quantity = 0;
+    private double volume = 0.0;
+    private double maxPrice = 0.0;
+    private int countEvents = 0;
+
+    public void incorporate(Event e) {
+        incorporate(e.getQuantity(), e.getPrice());
+    }
+
+    public void incorporate(int q, double p) {
+        quantity += q;
+        volume += p * q;
+        if (countEvents == 0 || p > maxPrice) maxPrice = p;
+        countEvents++;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public double getVolume() {
+        return volume;
+    }
+
+    public double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public int getCountEvents() {
+        return countEvents;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(quantity);
+        out.writeDouble(volume);
+        out.writeDouble(maxPrice);
+        out.writeInt(countEvents);
+    }
+
+    public static PerDayAgg readFrom(DataInputStream in) throws IOException {
+        PerDayAgg agg = new PerDayAgg();
+        agg.quantity = in.readInt();
+        agg.volume = in.readDouble();
+        agg.maxPrice = in.readDouble();
+        agg.countEvents = in.readInt();
+        return agg;
+    }
+
+    @Override
+    public String toString() {
+        return "PerDayAgg{quantity=" + quantity + ", volume=" + volume
+                + ", maxPrice=" + maxPrice + ", countEvents=" + countEvents + '}';
+    }
+}
@@ -0,0 +1,71 @@
+package testes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latências (em microssegundos) com buckets log-lineares, ao estilo do HdrHistogram: até 127 us
+ * cada valor tem o seu bucket; acima disso cada potência de 2 é dividida em 64 buckets, pelo que o erro de um
+ * percentil é no máximo ~1.6% do valor. O tamanho é fixo (não depende do nº de amostras) e record não usa
+ * locks, para poder ser chamado das threads de leitura de várias ligações.
+ */
+public class HistogramaLatencia {
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    // Expoentes até 2^(MAX_SHIFT + 6) us, muito acima de qualquer latência real
+    private static final int MAX_SHIFT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + MAX_SHIFT * SUB_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(micros) - 6, MAX_SHIFT);
+        long sub = Math.min(micros >> shift, 2 * SUB_BUCKETS - 1);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (sub - SUB_BUCKETS);
+    }
+
+    // Maior valor que cai no bucket
+    private static long highestInBucket(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /** Valor abaixo do qual (ou igual) estão p% das amostras; 0 sem amostras. */
+    public long percentile(double p) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(highestInBucket(i), max.get());
+        }
+        return max.get();
+    }
+}
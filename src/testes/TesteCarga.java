@@ -0,0 +1,292 @@
+package testes;
+
+import client.ClientAPI;
+import client.ClientConnection;
+import client.IngestPipeline;
+import common.IOUtils;
+import common.Message;
+import common.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gerador de carga em malha aberta. Ao contrário do TesteStress (N clientes que esperam por cada resposta
+ * antes de enviar o pedido seguinte), os pedidos são enviados a um ritmo fixo, independente das respostas,
+ * e a latência de cada um é medida a partir do instante em que devia ter sido enviado. Assim um servidor
+ * lento não abranda o próprio teste (coordinated omission) e as pausas aparecem na cauda da distribuição.
+ *
+ * Uso: java -cp bin testes.TesteCarga [chave=valor ...]
+ *   rate=2000           pedidos por segundo (no total)
+ *   duration=30         segundos medidos, depois do aquecimento
+ *   warmup=5            segundos de aquecimento (enviados, não contam)
+ *   connections=16      ligações, usadas à vez
+ *   mix=add:70,agg:20,filter:5,wait:5   pesos de cada tipo de pedido
+ *   products=1000       nº de produtos
+ *   zipf=1.0            expoente da popularidade dos produtos (0 = uniforme)
+ *   days=7              dias dos AGG_*
+ *   waitTimeout=1000    timeout (ms) dos WAIT_SIMULTANEOUS, pedido ao servidor
+ *   maxOutstanding=100000  pedidos sem resposta acima dos quais os envios são contados como não enviados
+ *   label=blocking      nome da corrida, gravado nos resultados (ex.: o modo do servidor)
+ *   out=carga.tsv       ficheiro de resultados (acrescenta uma linha por tipo de pedido)
+ *   host=localhost port=12345
+ * Antes de medir, grava um evento por produto e fecha o dia, para os FILTER e AGG_* terem dados.
+ */
+public class TesteCarga {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+
+    private final Map<String, HistogramaLatencia> histograms = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> timeouts = new LinkedHashMap<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong notSent = new AtomicLong();
+
+    private final Random rnd = new Random(42);
+    private double[] zipfCumulative;
+    private String[] kinds;
+    private double[] kindCumulative;
+    private int filterDay;
+
+    private TesteCarga(String[] args) {
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Argumento inválido (esperado chave=valor): " + a);
+            options.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        for (String op : new String[]{"ADD_EVENT", "AGG_QUANTITY", "AGG_VOLUME", "AGG_AVG_PRICE", "AGG_MAX_PRICE",
+                "FILTER", "WAIT"}) {
+            histograms.put(op, new HistogramaLatencia());
+            errors.put(op, new AtomicLong());
+            timeouts.put(op, new AtomicLong());
+        }
+    }
+
+    private String opt(String key, String def) {
+        return options.getOrDefault(key, def);
+    }
+
+    private int intOpt(String key, int def) {
+        return Integer.parseInt(opt(key, String.valueOf(def)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new TesteCarga(args).run();
+    }
+
+    private void run() throws Exception {
+        String host = opt("host", "localhost");
+        int port = intOpt("port", 12345);
+        int rate = intOpt("rate", 2000);
+        int duration = intOpt("duration", 30);
+        int warmup = intOpt("warmup", 5);
+        int nConnections = intOpt("connections", 16);
+        int products = intOpt("products", 1000);
+        int days = intOpt("days", 7);
+        long waitTimeout = intOpt("waitTimeout", 1000);
+        long maxOutstanding = intOpt("maxOutstanding", 100_000);
+        String label = opt("label", "run");
+        String out = opt("out", "carga.tsv");
+        if (rate <= 0 || duration <= 0 || warmup < 0 || nConnections <= 0 || products <= 0) {
+            throw new IllegalArgumentException("rate, duration, connections e products devem ser > 0");
+        }
+        parseMix(opt("mix", "add:70,agg:20,filter:5,wait:5"));
+        buildZipf(products, Double.parseDouble(opt("zipf", "1.0")));
+
+        System.out.println("Teste de carga (malha aberta): " + options);
+        List<ClientConnection> conns = new ArrayList<>();
+        try {
+            for (int c = 0; c < nConnections; c++) {
+                ClientConnection conn = new ClientConnection(host, port);
+                conns.add(conn);
+                ClientAPI api = new ClientAPI(conn);
+                try { api.register("carga", "pass"); } catch (IOException ignored) {}
+                api.login("carga", "pass");
+            }
+            prepare(new ClientAPI(conns.get(0)), products);
+
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+            long sent = 0;
+            for (long i = 0; ; i++) {
+                // Instante em que o pedido devia sair: não depende de quando os anteriores foram respondidos
+                long intended = start + i * intervalNanos;
+                if (intended >= end) break;
+                long now = System.nanoTime();
+                if (intended > now) LockSupport.parkNanos(intended - now);
+
+                boolean measured = intended >= measureFrom;
+                if (outstanding.get() >= maxOutstanding) {
+                    if (measured) notSent.incrementAndGet();
+                    continue;
+                }
+                send(conns.get((int) (i % conns.size())), intended, measured, products, days, waitTimeout);
+                if (measured) sent++;
+            }
+            double achieved = sent / (double) duration;
+
+            // Espera pelas respostas em falta (os WAIT podem demorar até ao seu timeout)
+            long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout + 10_000);
+            while (outstanding.get() > 0 && System.nanoTime() < drainUntil) Thread.sleep(10);
+
+            report(label, rate, achieved, out);
+        } finally {
+            for (ClientConnection conn : conns) conn.close();
+        }
+    }
+
+    private void parseMix(String mix) {
+        List<String> names = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv.length != 2 || !Arrays.asList("add", "agg", "filter", "wait").contains(kv[0])) {
+                throw new IllegalArgumentException("mix inválido: " + mix);
+            }
+            double w = Double.parseDouble(kv[1]);
+            if (w <= 0) continue;
+            names.add(kv[0]);
+            weights.add(w);
+        }
+        if (names.isEmpty()) throw new IllegalArgumentException("mix sem pedidos: " + mix);
+        kinds = names.toArray(new String[0]);
+        kindCumulative = new double[kinds.length];
+        double sum = 0;
+        for (int k = 0; k < kinds.length; k++) {
+            sum += weights.get(k);
+            kindCumulative[k] = sum;
+        }
+    }
+
+    private void buildZipf(int products, double s) {
+        zipfCumulative = new double[products];
+        double sum = 0;
+        for (int k = 0; k < products; k++) {
+            sum += 1.0 / Math.pow(k + 1, s);
+            zipfCumulative[k] = sum;
+        }
+    }
+
+    private static int pick(double[] cumulative, double r) {
+        int idx = Arrays.binarySearch(cumulative, r * cumulative[cumulative.length - 1]);
+        return Math.min(idx >= 0 ? idx : -idx - 1, cumulative.length - 1);
+    }
+
+    private String product() {
+        return "Produto_" + pick(zipfCumulative, rnd.nextDouble());
+    }
+
+    // Um evento por produto num dia fechado, para os FILTER e AGG_* não responderem sobre dias vazios
+    private void prepare(ClientAPI api, int products) throws Exception {
+        try (IngestPipeline pipeline = api.ingestPipeline(1000, 5, 4)) {
+            for (int p = 0; p < products; p++) {
+                pipeline.addEvent("Produto_" + p, 1, 10.0, System.currentTimeMillis());
+            }
+        }
+        filterDay = api.advanceDay();
+        System.out.println("Preparado: " + products + " produtos no dia " + filterDay);
+    }
+
+    private void send(ClientConnection conn, long intended, boolean measured, int products, int days,
+                      long waitTimeout) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        String op;
+        byte opCode;
+        switch (kinds[pick(kindCumulative, rnd.nextDouble())]) {
+            case "add":
+                op = "ADD_EVENT";
+                opCode = Protocol.ADD_EVENT;
+                IOUtils.writeString(dout, product());
+                dout.writeInt(1 + rnd.nextInt(10));
+                dout.writeDouble(1.0 + rnd.nextInt(10_000) / 100.0);
+                dout.writeLong(System.currentTimeMillis());
+                break;
+            case "agg":
+                byte[] aggs = {Protocol.AGG_QUANTITY, Protocol.AGG_VOLUME, Protocol.AGG_AVG_PRICE, Protocol.AGG_MAX_PRICE};
+                String[] aggNames = {"AGG_QUANTITY", "AGG_VOLUME", "AGG_AVG_PRICE", "AGG_MAX_PRICE"};
+                int a = rnd.nextInt(aggs.length);
+                op = aggNames[a];
+                opCode = aggs[a];
+                IOUtils.writeString(dout, product());
+                dout.writeInt(1 + rnd.nextInt(days));
+                break;
+            case "filter":
+                op = "FILTER";
+                opCode = Protocol.FILTER_EVENTS_STREAM;
+                List<String> wanted = new ArrayList<>();
+                for (int k = 0; k < 1 + rnd.nextInt(5); k++) wanted.add(product());
+                IOUtils.writeStringList(dout, wanted);
+                dout.writeInt(filterDay);
+                break;
+            default:
+                op = "WAIT";
+                opCode = Protocol.WAIT_SIMULTANEOUS;
+                IOUtils.writeString(dout, product());
+                IOUtils.writeString(dout, product());
+                dout.writeLong(waitTimeout);
+                break;
+        }
+        dout.flush();
+
+        outstanding.incrementAndGet();
+        CompletableFuture<Message> f = opCode == Protocol.FILTER_EVENTS_STREAM
+                ? conn.sendStreamRequestAsync(opCode, bout.toByteArray(), chunk -> {})
+                : conn.sendRequestAsync(opCode, bout.toByteArray());
+        f.whenComplete((resp, t) -> {
+            outstanding.decrementAndGet();
+            if (!measured) return;
+            histograms.get(op).record((System.nanoTime() - intended) / 1000);
+            if (t != null || resp.getPayload().length == 0) errors.get(op).incrementAndGet();
+            else if (resp.getPayload()[0] == Protocol.STATUS_TIMEOUT) timeouts.get(op).incrementAndGet();
+            else if (resp.getPayload()[0] != Protocol.STATUS_OK) errors.get(op).incrementAndGet();
+        });
+    }
+
+    private void report(String label, int rate, double achieved, String out) throws IOException {
+        System.out.println("\n======= RESULTADO (latências em ms, desde o envio previsto) =======");
+        System.out.printf("Ritmo pedido: %d/s, enviado: %.0f/s, não enviados: %d, sem resposta: %d%n",
+                rate, achieved, notSent.get(), outstanding.get());
+        System.out.printf("%-14s %9s %7s %7s %9s %9s %9s %9s %9s %9s%n",
+                "pedido", "n", "erros", "timeout", "média", "p50", "p90", "p99", "p99.9", "max");
+
+        boolean header = !new File(out).exists();
+        try (PrintWriter pw = new PrintWriter(new FileWriter(out, true))) {
+            if (header) {
+                pw.println("label\trate\tachieved\top\tcount\terrors\ttimeouts\tmean_us\tp50_us\tp90_us\tp99_us\tp999_us\tmax_us");
+            }
+            for (Map.Entry<String, HistogramaLatencia> e : histograms.entrySet()) {
+                HistogramaLatencia h = e.getValue();
+                if (h.count() == 0) continue;
+                String op = e.getKey();
+                long[] p = new long[PERCENTILES.length];
+                for (int i = 0; i < p.length; i++) p[i] = h.percentile(PERCENTILES[i]);
+
+                System.out.printf("%-14s %9d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", op, h.count(),
+                        errors.get(op).get(), timeouts.get(op).get(), h.mean() / 1000, p[0] / 1000.0,
+                        p[1] / 1000.0, p[2] / 1000.0, p[3] / 1000.0, h.max() / 1000.0);
+                pw.printf("%s\t%d\t%.0f\t%s\t%d\t%d\t%d\t%.0f\t%d\t%d\t%d\t%d\t%d%n", label, rate, achieved, op,
+                        h.count(), errors.get(op).get(), timeouts.get(op).get(), h.mean(), p[0], p[1], p[2], p[3],
+                        h.max());
+            }
+        }
+        System.out.println("Resultados acrescentados a " + out);
+    }
+}
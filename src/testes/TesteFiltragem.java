@@ -2,6 +2,11 @@ package testes;
 
 import client.ClientAPI;
 import client.ClientConnection;
+import client.EventRecord;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class TesteFiltragem {
     private static final String HOST = "localhost";
@@ -39,6 +44,19 @@ public class TesteFiltragem {
             }
             System.out.println("=========================");
 
+            // 4. Mesmo filtro em streaming: os eventos chegam um a um, sem String intermédia
+            System.out.println("-> Filtro em streaming para 'Prod_A' e 'Prod_C'...");
+            Set<String> recebidos = new HashSet<>();
+            int total = api.filterEvents(Arrays.asList("Prod_A", "Prod_C"), diaParaFiltrar, (EventRecord e) -> {
+                System.out.println("   " + e);
+                recebidos.add(e.getProduct());
+            });
+            if (total == 2 && recebidos.equals(new HashSet<>(Arrays.asList("Prod_A", "Prod_C")))) {
+                System.out.println("Filtragem em streaming: OK (" + total + " eventos)");
+            } else {
+                System.out.println("Filtragem em streaming: ERRO (" + total + " eventos, produtos " + recebidos + ")");
+            }
+
         } catch (Exception e) {
             e.printStackTrace();
         }
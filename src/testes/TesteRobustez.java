@@ -2,10 +2,21 @@ package testes;
 
 import client.ClientAPI;
 import client.ClientConnection;
+import common.Message;
+import common.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class TesteRobustez {
     private static final String HOST = "localhost";
     private static final int PORT = 12345;
+    private static final int CONNECTIONS = 50;
+    private static final int WAITS_PER_CONNECTION = 100;
+    private static final long WAIT_TIMEOUT_MS = 2000;
 
     public static void main(String[] args) {
         System.out.println("Iniciando Teste de Robustez...");
@@ -21,7 +32,7 @@ public class TesteRobustez {
 
                     if (api.login("zombi", "pass")) {
                         System.out.println("[Zombi] Autenticado. Bloqueando em waitSimultaneous...");
-                        // Esta operação bloqueia a thread no servidor
+                        // A espera fica registada no servidor, sem ocupar nenhuma thread de lá
                         api.waitSimultaneous("ProdA", "ProdB");
                     }
                 } catch (Exception e) {
@@ -45,11 +56,54 @@ public class TesteRobustez {
                     long end = System.currentTimeMillis();
 
                     System.out.println("[Normal] Operação concluída em " + (end - start) + "ms.");
-                    System.out.println("\n======= RESULTADO =======");
-                    System.out.println("Robustez: OK (O servidor continua funcional)");
-                    System.out.println("=========================");
                 }
             }
+
+            // 3. Muitas esperas com timeout: custam memória no servidor, não threads
+            System.out.println("[Esperas] A registar " + (CONNECTIONS * WAITS_PER_CONNECTION)
+                    + " esperas com timeout de " + WAIT_TIMEOUT_MS + "ms...");
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            dout.writeInt(1_000_000);
+            dout.writeLong(WAIT_TIMEOUT_MS);
+            byte[] payload = bout.toByteArray();
+
+            List<ClientConnection> conns = new ArrayList<>();
+            List<CompletableFuture<Message>> waits = new ArrayList<>();
+            try {
+                for (int c = 0; c < CONNECTIONS; c++) {
+                    ClientConnection conn = new ClientConnection(HOST, PORT);
+                    conns.add(conn);
+                    ClientAPI api = new ClientAPI(conn);
+                    try { api.register("esperas", "pass"); } catch (Exception ignored) {}
+                    api.login("esperas", "pass");
+                    // Abaixo do limite de pedidos pendentes por conexão do servidor
+                    for (int i = 0; i < WAITS_PER_CONNECTION; i++) {
+                        waits.add(conn.sendRequestAsync(Protocol.WAIT_CONSECUTIVE, payload));
+                    }
+                }
+
+                try (ClientConnection conn = new ClientConnection(HOST, PORT);
+                     ClientAPI api = new ClientAPI(conn)) {
+                    api.login("normal", "pass");
+                    long start = System.currentTimeMillis();
+                    api.addEvent("Teste", 1, 10.0, System.currentTimeMillis());
+                    System.out.println("[Esperas] addEvent com as esperas pendentes: "
+                            + (System.currentTimeMillis() - start) + "ms.");
+                }
+
+                int timedOut = 0;
+                for (CompletableFuture<Message> w : waits) {
+                    if (ClientConnection.await(w).getPayload()[0] == Protocol.STATUS_TIMEOUT) timedOut++;
+                }
+                System.out.println("[Esperas] " + timedOut + "/" + waits.size() + " terminaram com STATUS_TIMEOUT.");
+            } finally {
+                for (ClientConnection conn : conns) conn.close();
+            }
+
+            System.out.println("\n======= RESULTADO =======");
+            System.out.println("Robustez: OK (O servidor continua funcional)");
+            System.out.println("=========================");
         } catch (Exception e) {
             e.printStackTrace();
         }
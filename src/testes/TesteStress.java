@@ -2,9 +2,11 @@ package testes;
 
 import client.ClientAPI;
 import client.ClientConnection;
+import client.IngestPipeline;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TesteStress {
@@ -14,8 +16,11 @@ public class TesteStress {
     private static final int REQUESTS_PER_CLIENT = 100; // Pedidos por cada cliente
 
     public static void main(String[] args) {
+        // "batch": usa o IngestPipeline em vez de um addEvent síncrono por evento
+        boolean batch = args.length > 0 && args[0].equals("batch");
         System.out.println("Iniciando Teste de Carga e Escalabilidade...");
-        System.out.println("Cenário: " + NUM_CLIENTS + " clientes, " + REQUESTS_PER_CLIENT + " pedidos cada.");
+        System.out.println("Cenário: " + NUM_CLIENTS + " clientes, " + REQUESTS_PER_CLIENT + " pedidos cada"
+                + (batch ? " (pipeline em lotes)." : "."));
 
         AtomicInteger successfulRequests = new AtomicInteger(0);
         AtomicInteger failedRequests = new AtomicInteger(0);
@@ -36,13 +41,26 @@ public class TesteStress {
                     try { api.register(user, pass); } catch (Exception ignored) {}
 
                     if (api.login(user, pass)) {
-                        for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
-                            try {
-                                // Simula a inserção de um evento
-                                api.addEvent("Produto_" + id, 1, 10.5, System.currentTimeMillis());
-                                successfulRequests.incrementAndGet();
-                            } catch (IOException e) {
-                                failedRequests.incrementAndGet();
+                        if (batch) {
+                            List<CompletableFuture<Long>> acks = new ArrayList<>();
+                            try (IngestPipeline pipeline = api.ingestPipeline(32, 5, 4)) {
+                                for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                                    acks.add(pipeline.addEvent("Produto_" + id, 1, 10.5, System.currentTimeMillis()));
+                                }
+                            }
+                            for (CompletableFuture<Long> ack : acks) {
+                                if (ack.isCompletedExceptionally()) failedRequests.incrementAndGet();
+                                else successfulRequests.incrementAndGet();
+                            }
+                        } else {
+                            for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                                try {
+                                    // Simula a inserção de um evento
+                                    api.addEvent("Produto_" + id, 1, 10.5, System.currentTimeMillis());
+                                    successfulRequests.incrementAndGet();
+                                } catch (IOException e) {
+                                    failedRequests.incrementAndGet();
+                                }
                             }
                         }
                     }
@@ -0,0 +1,68 @@
+package testes;
+
+import client.AggregateUpdate;
+import client.ClientAPI;
+import client.ClientConnection;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscrições de agregados (SUBSCRIBE_AGG / SERVER_PUSH): os valores chegam sem polling quando um dia fecha,
+ * e com intervalo mínimo as mudanças seguidas chegam agrupadas no valor mais recente.
+ */
+public class TesteSubscricao {
+    private static final String HOST = "localhost";
+    private static final int PORT = 12345;
+
+    public static void main(String[] args) {
+        System.out.println("Iniciando Teste de Subscrições...");
+
+        try (ClientConnection conn = new ClientConnection(HOST, PORT);
+             ClientAPI api = new ClientAPI(conn)) {
+
+            try { api.register("userS", "pass"); } catch (Exception ignored) {}
+            api.login("userS", "pass");
+
+            // 1. A cada mudança: um push inicial e outro quando o dia fecha
+            BlockingQueue<AggregateUpdate> updates = new LinkedBlockingQueue<>();
+            int id = api.subscribeAggregates("Prod_S", 1, null, updates::add);
+            AggregateUpdate inicial = updates.poll(5, TimeUnit.SECONDS);
+            System.out.println("-> Push inicial: " + inicial);
+
+            api.addEvent("Prod_S", 4, 2.5, System.currentTimeMillis());
+            api.addEvent("Prod_S", 6, 5.0, System.currentTimeMillis());
+            int dia = api.advanceDay();
+            AggregateUpdate depois = updates.poll(5, TimeUnit.SECONDS);
+            System.out.println("-> Push depois de fechar o dia " + dia + ": " + depois);
+            api.unsubscribeAggregates(id);
+
+            boolean ok = inicial != null && depois != null && depois.getQuantity() == 10
+                    && depois.getMaxPrice() == 5.0 && depois.getDay() == dia + 1;
+
+            // 2. Com intervalo mínimo: três dias fechados seguidos chegam num push com os valores do último
+            List<AggregateUpdate> agrupados = new CopyOnWriteArrayList<>();
+            int id2 = api.subscribeAggregates("Prod_S", 1, Duration.ofSeconds(1), agrupados::add);
+            Thread.sleep(200);
+            for (int i = 0; i < 3; i++) {
+                api.addEvent("Prod_S", 1, 1.0, System.currentTimeMillis());
+                dia = api.advanceDay();
+            }
+            Thread.sleep(2000);
+            api.unsubscribeAggregates(id2);
+            AggregateUpdate ultimo = agrupados.isEmpty() ? null : agrupados.get(agrupados.size() - 1);
+            System.out.println("-> " + agrupados.size() + " pushes com intervalo de 1s; último: " + ultimo);
+            ok = ok && agrupados.size() == 2 && ultimo.getDay() == dia + 1 && ultimo.getQuantity() == 1;
+
+            System.out.println("\n======= RESULTADO =======");
+            System.out.println(ok ? "Subscrições: OK" : "Subscrições: ERRO");
+            System.out.println("=========================");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
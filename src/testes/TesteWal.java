@@ -0,0 +1,125 @@
+package testes;
+
+import server.DayManager;
+import server.EventLog;
+import server.NotificationManager;
+import server.model.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Custo de cada nível de durabilidade do WAL: várias threads fazem DayManager.addEvent (um evento por append,
+ * o pior caso) numa diretoria temporária. Não precisa do servidor.
+ * Antes disso verifica que os eventos recuperados do WAL chegam aos listeners.
+ * Uso: java -cp bin testes.TesteWal [threads] [eventos por nível]
+ */
+public class TesteWal {
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_EVENTS = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_EVENTS;
+
+        recoveryCheck();
+
+        System.out.println("Teste de WAL: " + threads + " threads, " + events + " eventos por nível");
+        // Aquecimento (JIT), sem resultados
+        run(null, EventLog.Durability.OS, 1, 1, threads, events);
+        run(null, EventLog.Durability.BATCH, 1000, 10, threads, events);
+
+        System.out.printf("%-24s %12s %10s %12s%n", "Nível", "eventos/s", "fsyncs", "us/evento");
+
+        run("sem WAL", null, 1, 1, threads, events);
+        run("os", EventLog.Durability.OS, 1, 1, threads, events);
+        run("batch 1000 ev / 10 ms", EventLog.Durability.BATCH, 1000, 10, threads, events);
+        run("batch 100 ev / 1 ms", EventLog.Durability.BATCH, 100, 1, threads, events);
+        // Com fsync em cada pedido o débito é limitado pelo disco: menos eventos para o teste não demorar
+        run("sync (group commit)", EventLog.Durability.SYNC, 1, 1, threads, Math.max(threads, events / 10));
+    }
+
+    /**
+     * Simula um crash com o dia aberto (dois produtos vendidos e o WAL fechado sem fechar o dia) e um
+     * arranque a partir do WAL, como no MainServer: um WAIT_SIMUL pelos dois produtos tem de completar logo,
+     * porque já foram vendidos no dia.
+     */
+    private static void recoveryCheck() throws Exception {
+        File dir = Files.createTempDirectory("wal-recovery").toFile();
+        EventLog log = new EventLog(dir, EventLog.Durability.SYNC, 1, 1);
+        log.open(0);
+        DayManager beforeCrash = new DayManager(0, new ArrayList<>(), log);
+        beforeCrash.addEvent(new Event("Produto_A", 1, 10.5, System.currentTimeMillis()));
+        beforeCrash.addEvent(new Event("Produto_B", 2, 3.0, System.currentTimeMillis()));
+        log.close();
+
+        EventLog reopened = new EventLog(dir, EventLog.Durability.SYNC, 1, 1);
+        List<Event> recovered = reopened.readDay(0);
+        reopened.open(0);
+        DayManager dm = new DayManager(0, recovered, reopened);
+        NotificationManager nm = new NotificationManager(dm);
+        dm.replayRecovered();
+
+        boolean ok;
+        try {
+            ok = recovered.size() == 2 && nm.waitSimultaneous("Produto_A", "Produto_B").get(5, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            ok = false;
+        }
+        reopened.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+        System.out.println(ok ? "Espera depois da recuperação: OK" : "Espera depois da recuperação: ERRO");
+    }
+
+    // name == null: aquecimento, não imprime
+    private static void run(String name, EventLog.Durability durability, int batchEvents, long batchMillis,
+                            int threads, int events) throws Exception {
+        File dir = Files.createTempDirectory("wal-bench").toFile();
+        EventLog log = null;
+        if (durability != null) {
+            log = new EventLog(dir, durability, batchEvents, batchMillis);
+            log.open(0);
+        }
+        DayManager dm = new DayManager(0, new ArrayList<>(), log);
+
+        int perThread = events / threads;
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread w = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        dm.addEvent(new Event("Produto_" + (i % 50), 1 + i % 10, 10.5, System.currentTimeMillis()));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Thread " + id + ": " + e.getMessage());
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - start;
+
+        long syncs = 0;
+        if (log != null) {
+            syncs = log.getSyncCount();
+            log.close();
+        }
+        int total = perThread * threads;
+        if (name != null) System.out.printf("%-24s %12.0f %10d %12.2f%n", name, total / (elapsed / 1e9), syncs,
+                elapsed / 1e3 / total * threads);
+
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
@@ -2,8 +2,13 @@ package ui;
 
 import client.ClientAPI;
 import client.ClientConnection;
+import client.EventRecord;
 
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class ConsoleUI {
@@ -127,14 +132,23 @@ public class ConsoleUI {
                             }
                             break;
                         case "9": // filter events on day d
-                            System.out.print("How many products: ");
-                            int filn = Integer.parseInt(sc.nextLine().trim());
-                            System.out.print("products: ");
+                            System.out.print("products (separated by spaces or commas): ");
                             String filp = sc.nextLine().trim();
                             System.out.print("d (day): ");
                             int fild = Integer.parseInt(sc.nextLine().trim());
                             try {
-                                String res = api.filterByDay(filn, filp, fild);
+                                // Resultado binário (FILTER_EVENTS_STREAM), formatado aqui
+                                List<String> filList = Arrays.asList(filp.split("[,\\s]+"));
+                                Map<String, StringBuilder> byProduct = new LinkedHashMap<>();
+                                for (String fp : filList) byProduct.put(fp, new StringBuilder());
+                                api.filterEvents(filList, fild, (EventRecord e) -> byProduct.get(e.getProduct())
+                                        .append("quantity=").append(e.getQuantity())
+                                        .append(", price=").append(e.getPrice())
+                                        .append(", timestamp=").append(e.getTimestamp()).append('\n'));
+                                StringBuilder res = new StringBuilder();
+                                for (Map.Entry<String, StringBuilder> entry : byProduct.entrySet()) {
+                                    res.append(entry.getKey()).append('\n').append(entry.getValue()).append('\n');
+                                }
                                 System.out.println("Events mentioning " + filp +" on day " + fild + ":\n" + res);
                             } catch (Exception e) {
                                 System.err.println("Filter failed: " + e.getMessage());